@@ -0,0 +1,86 @@
+package com.bgpixel.prettyboxformatter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/** Throughput of formatAsync on the executors DefaultExecutor chooses from: the common
+ *  ForkJoinPool and a virtual thread per task (Java 21+ only; setup fails on older versions), and
+ *  of formatting the same boxes on the calling thread. A score is the time to format a batch of
+ *  boxes and wait for all of them. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AsyncFormatBenchmark {
+
+    private static final int BOXES = 100;
+    private static final int LINES_PER_BOX = 20;
+
+    @Param({ "commonPool", "virtualThreads" })
+    public String executor;
+
+    private Executor asyncExecutor;
+    private PrettyBoxFormatter formatter;
+    private List<CharSequence> lines;
+    private final List<CompletableFuture<String>> futures = new ArrayList<>(BOXES);
+
+    @Setup(Level.Trial)
+    public void setUp() throws ReflectiveOperationException {
+        if(executor.equals("commonPool")) asyncExecutor = ForkJoinPool.commonPool();
+        else asyncExecutor = (Executor) Executors.class
+                .getMethod("newVirtualThreadPerTaskExecutor")
+                .invoke(null);
+
+        formatter = new PrettyBoxFormatter(new PrettyBoxConfiguration.Builder()
+                .setPrefixEveryPrintWithNewline(false)
+                .setCharsPerLine(80)
+                .build());
+        lines = new ArrayList<>(LINES_PER_BOX);
+        for (int i = 0; i < LINES_PER_BOX; i++) lines.add("Line " + i + " of an async box");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if(asyncExecutor instanceof ExecutorService && asyncExecutor != ForkJoinPool.commonPool())
+            ((ExecutorService) asyncExecutor).shutdown();
+    }
+
+    @Benchmark
+    public int formatAsync() {
+        futures.clear();
+        for (int i = 0; i < BOXES; i++) futures.add(formatter.formatAsync(lines, asyncExecutor));
+        int length = 0;
+        for (CompletableFuture<String> future : futures) length += future.join().length();
+        return length;
+    }
+
+    @Benchmark
+    public int formatOnCallingThread() {
+        int length = 0;
+        for (int i = 0; i < BOXES; i++) length += formatter.format(lines).length();
+        return length;
+    }
+
+}
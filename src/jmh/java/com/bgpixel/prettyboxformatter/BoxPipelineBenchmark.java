@@ -0,0 +1,80 @@
+package com.bgpixel.prettyboxformatter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** Cost of publishing a box to a BoxPipeline, compared with formatting it on the calling thread.
+ *  The ring is kept full by publishing faster than the consumer renders, so DROP_NEWEST and
+ *  DROP_OLDEST measure the overflow paths, and BLOCK the rate at which the consumer makes room.
+ *  Boxes are written into a target that discards them. Run with -prof gc to see allocations per
+ *  publish. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BoxPipelineBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Content {
+
+        final PrettyBoxFormatter formatter = new PrettyBoxFormatter(
+                new PrettyBoxConfiguration.Builder()
+                        .setPrefixEveryPrintWithNewline(false)
+                        .setCharsPerLine(80)
+                        .build());
+        final List<CharSequence> lines = new ArrayList<>();
+
+        @Setup
+        public void setUp() {
+            for (int i = 0; i < 10; i++) lines.add("Line " + i + " of the published box");
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Pipeline {
+
+        @Param({ "BLOCK", "DROP_OLDEST", "DROP_NEWEST" })
+        public BoxPipeline.OverflowPolicy policy;
+
+        BoxPipeline pipeline;
+
+        @Setup(Level.Trial)
+        public void setUp(Content content) {
+            pipeline = new BoxPipeline(content.formatter, DiscardingAppendable.INSTANCE, 1024,
+                    policy);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            pipeline.close();
+        }
+    }
+
+    @Benchmark
+    public boolean publish(Pipeline pipeline, Content content) {
+        return pipeline.pipeline.publish(content.lines);
+    }
+
+    @Benchmark
+    public void formatOnCallingThread(Content content) throws IOException {
+        content.formatter.formatTo(DiscardingAppendable.INSTANCE, content.lines);
+    }
+
+}
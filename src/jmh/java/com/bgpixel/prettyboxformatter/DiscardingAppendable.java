@@ -0,0 +1,10 @@
+package com.bgpixel.prettyboxformatter;
+
+/** Target of benchmarks measuring rendering only: whatever is appended is thrown away. */
+enum DiscardingAppendable implements Appendable {
+    INSTANCE;
+
+    @Override public Appendable append(CharSequence csq) { return this; }
+    @Override public Appendable append(CharSequence csq, int start, int end) { return this; }
+    @Override public Appendable append(char c) { return this; }
+}
@@ -0,0 +1,87 @@
+package com.bgpixel.prettyboxformatter;
+
+import org.jetbrains.annotations.NotNull;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/** Throughput of formatAll for various numbers of boxes in flight per worker (see
+ *  {@link PrettyBoxFormatter#BATCH_BOXES_PER_WORKER}) and sizes of the common pool, compared with
+ *  formatting the boxes one by one on the calling thread. A score is the time of the whole
+ *  batch.<br/>
+ *  Each parameter combination runs in a fork of its own, so the common pool parallelism is set
+ *  before the pool is first used; setup fails if it's too late. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FormatAllBenchmark {
+
+    private static final int BOXES = 1000;
+    private static final int LINES_PER_BOX = 20;
+
+    @Param({ "1", "2", "4", "8", "16" })
+    public int boxesPerWorker;
+
+    /** Parallelism of the common pool. */
+    @Param({ "1", "2", "4", "8" })
+    public int parallelism;
+
+    private PrettyBoxFormatter formatter;
+    private List<PrettyBoxable> boxes;
+
+    @Setup
+    public void setUp() {
+        System.setProperty("java.util.concurrent.ForkJoinPool.common.parallelism",
+                Integer.toString(parallelism));
+        if(ForkJoinPool.getCommonPoolParallelism() != parallelism)
+            throw new IllegalStateException("Common pool already started with parallelism "
+                    + ForkJoinPool.getCommonPoolParallelism());
+
+        formatter = new PrettyBoxFormatter(new PrettyBoxConfiguration.Builder()
+                .setPrefixEveryPrintWithNewline(false)
+                .setCharsPerLine(80)
+                .build());
+
+        boxes = new ArrayList<>(BOXES);
+        for (int i = 0; i < BOXES; i++) {
+            final List<CharSequence> lines = new ArrayList<>(LINES_PER_BOX);
+            for (int j = 0; j < LINES_PER_BOX; j++)
+                lines.add("Box " + i + ", line " + j + " of the batch");
+            boxes.add(new PrettyBoxable() {
+                @NotNull @Override
+                public List<CharSequence> toStringLines() { return lines; }
+            });
+        }
+    }
+
+    @Benchmark
+    public void formatAll() throws IOException {
+        formatter.runBatchFormattingTask(DiscardingAppendable.INSTANCE, boxes.iterator(), null,
+                boxesPerWorker);
+    }
+
+    @Benchmark
+    public void formatEachOnCallingThread() throws IOException {
+        // rendered into Strings, like formatAll does
+        for (PrettyBoxable box : boxes)
+            DiscardingAppendable.INSTANCE.append(formatter.format(box)).append(BoxSink.NEWLINE);
+    }
+
+}
@@ -0,0 +1,86 @@
+package com.bgpixel.prettyboxformatter;
+
+import com.bgpixel.prettyboxformatter.line.LineWithType;
+import com.bgpixel.prettyboxformatter.linetype.LineType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** format compared with the way boxes were drawn before (see LegacyBoxDrawer): new Strings of
+ *  spaces and horizontal lines for every margin, padding and border of every row. Both produce
+ *  the same box, which is checked on setup. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FormatBenchmark {
+
+    /** Content lines per box; every tenth one is an inner line. */
+    @Param({ "10", "1000" })
+    public int lines;
+
+    /** Length of the longest content line. Lines are up to 7 chars shorter, so rows are padded. */
+    @Param({ "16", "70" })
+    public int lineLength;
+
+    private PrettyBoxFormatter formatter;
+    private LegacyBoxDrawer legacyDrawer;
+    private List<CharSequence> content;
+
+    @Setup
+    public void setUp() {
+        PrettyBoxConfiguration configuration = new PrettyBoxConfiguration.Builder()
+                .setPrefixEveryPrintWithNewline(false)
+                .setCharsPerLine(80)
+                .setWrapContent(true)
+                .setBorders(true)
+                .setBorderLineType(LineType.LINE)
+                .setInnerLineType(LineType.DASH_TRIPLE)
+                .setHorizontalPadding(1)
+                .setVerticalPadding(0)
+                .setMargin(0)
+                .build();
+        formatter = new PrettyBoxFormatter(configuration);
+        legacyDrawer = new LegacyBoxDrawer(configuration);
+
+        content = new ArrayList<>(lines);
+        for (int i = 0; i < lines; i++) {
+            if(i % 10 == 9) {
+                content.add(new LineWithType(LineType.DASH_DOUBLE));
+                continue;
+            }
+            char[] line = new char[lineLength - i % 8];
+            Arrays.fill(line, (char) ('a' + i % 26));
+            content.add(new String(line));
+        }
+
+        if(!formatter.format(content).equals(legacyDrawer.format(content)))
+            throw new IllegalStateException("Boxes differ");
+    }
+
+    @Benchmark
+    public String format() {
+        return formatter.format(content);
+    }
+
+    @Benchmark
+    public String legacyFormat() {
+        return legacyDrawer.format(content);
+    }
+
+}
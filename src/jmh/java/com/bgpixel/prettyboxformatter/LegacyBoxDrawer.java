@@ -0,0 +1,206 @@
+package com.bgpixel.prettyboxformatter;
+
+import com.bgpixel.prettyboxformatter.line.LineWithLevel;
+import com.bgpixel.prettyboxformatter.line.LineWithType;
+import com.bgpixel.prettyboxformatter.linetype.LineType;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** The way boxes were drawn before templates, character runs and exact measuring: every row is
+ *  built from new Strings of spaces and horizontal lines (getNCharacterString), lines are
+ *  measured by length and split every n chars, and rows are joined at the end. Kept only as a
+ *  baseline for benchmarks. Supports content lines and inner lines, with no title or metadata.
+ *  <br/>
+ *  The configuration must have all values set. */
+final class LegacyBoxDrawer {
+
+    private static final String NEWLINE = System.getProperty("line.separator");
+
+    @NotNull private final PrettyBoxConfiguration configuration;
+    private final int maxContentWidth;
+    private final int maxLineWidth;
+
+    @SuppressWarnings("ConstantConditions") // all values are set
+    LegacyBoxDrawer(@NotNull PrettyBoxConfiguration configuration) {
+        this.configuration = configuration;
+        int numSides = (configuration.getBorderLeft()? 1 : 0)
+                + (configuration.getBorderRight()? 1 : 0);
+        maxLineWidth = configuration.getCharsPerLine()
+                - configuration.getMarginLeft()
+                - configuration.getMarginRight()
+                - numSides;
+        maxContentWidth = maxLineWidth
+                - configuration.getPaddingLeft()
+                - configuration.getPaddingRight();
+    }
+
+    @SuppressWarnings("ConstantConditions") // all values are set
+    @NotNull
+    String format(@NotNull List<CharSequence> lines) {
+        int maxSourceWidth = 0;
+        for (CharSequence line : lines) maxSourceWidth = Math.max(maxSourceWidth, line.length());
+
+        if(maxSourceWidth > maxContentWidth) {
+            maxSourceWidth = maxContentWidth;
+            lines = splitLinesToFitBox(lines, maxContentWidth);
+        }
+
+        int contentWidth;
+        int lineWidth;
+        if(configuration.getWrapContent()) {
+            contentWidth = maxSourceWidth;
+            lineWidth = contentWidth
+                    + configuration.getPaddingLeft() + configuration.getPaddingRight();
+        } else {
+            contentWidth = maxContentWidth;
+            lineWidth = maxLineWidth;
+        }
+        return drawBox(lines, contentWidth, lineWidth);
+    }
+
+    /** Splits lines wider than given width every contentWidth chars. */
+    @NotNull
+    static List<CharSequence> splitLinesToFitBox(@NotNull List<CharSequence> lines,
+                                                 int contentWidth) {
+        List<CharSequence> splitLines = new ArrayList<>();
+        for(CharSequence line : lines) {
+            if(line.length() <= contentWidth) splitLines.add(line);
+            else splitLines.addAll(splitLineEveryNChars(line, contentWidth));
+        }
+        return splitLines;
+    }
+
+
+    // ------------------------------------------------------------------------------------ INTERNAL
+
+    @SuppressWarnings("ConstantConditions") // all values are set
+    @NotNull
+    private String drawBox(@NotNull List<CharSequence> contentLines,
+                           int contentWidth,
+                           int lineWidth) {
+        ArrayList<CharSequence> lines = new ArrayList<>();
+        StringBuilder stringBuilder = new StringBuilder();
+
+        if(configuration.getBorderTop()) {
+            stringBuilder.setLength(0);
+            drawOuterLine(true, stringBuilder, lineWidth);
+            lines.add(stringBuilder.toString());
+        }
+
+        for (int i = 0; i < configuration.getPaddingTop(); i++) {
+            stringBuilder.setLength(0);
+            drawVerticalPadding(stringBuilder, lineWidth);
+            lines.add(stringBuilder.toString());
+        }
+
+        for (CharSequence contentLine : contentLines) {
+            stringBuilder.setLength(0);
+            if(contentLine instanceof LineWithType)
+                drawInnerLine(stringBuilder, lineWidth,
+                        ((LineWithType) contentLine).getLineType());
+            else if(contentLine instanceof LineWithLevel)
+                drawInnerLine(stringBuilder, lineWidth, configuration.getLineTypeForLevel(
+                        ((LineWithLevel) contentLine).getLineLevel()));
+            else
+                drawContentLine(stringBuilder, contentLine, contentWidth);
+            lines.add(stringBuilder.toString());
+        }
+
+        for (int i = 0; i < configuration.getPaddingBottom(); i++) {
+            stringBuilder.setLength(0);
+            drawVerticalPadding(stringBuilder, lineWidth);
+            lines.add(stringBuilder.toString());
+        }
+
+        if(configuration.getBorderBottom()) {
+            stringBuilder.setLength(0);
+            drawOuterLine(false, stringBuilder, lineWidth);
+            lines.add(stringBuilder.toString());
+        }
+
+        return JavaUtil.join(NEWLINE, lines);
+    }
+
+    @SuppressWarnings("ConstantConditions") // all values are set
+    private void drawOuterLine(boolean top, @NotNull StringBuilder stringBuilder, int lineWidth) {
+        LineType borderLineType = configuration.getBorderLineType();
+        stringBuilder.append(getHorizontalSpaces(configuration.getMarginLeft()));
+        if(configuration.getBorderLeft())
+            stringBuilder.append(top?
+                    borderLineType.getTopLeftCorner() : borderLineType.getBottomLeftCorner());
+        stringBuilder.append(getNCharacterString(borderLineType.getHorizontalLine(), lineWidth));
+        if(configuration.getBorderRight())
+            stringBuilder.append(top?
+                    borderLineType.getTopRightCorner() : borderLineType.getBottomRightCorner());
+        stringBuilder.append(getHorizontalSpaces(configuration.getMarginRight()));
+    }
+
+    @SuppressWarnings("ConstantConditions") // all values are set
+    private void drawVerticalPadding(@NotNull StringBuilder stringBuilder, int lineWidth) {
+        stringBuilder.append(getHorizontalSpaces(configuration.getMarginLeft()));
+        if(configuration.getBorderLeft())
+            stringBuilder.append(configuration.getBorderLineType().getVerticalLine());
+        stringBuilder.append(getHorizontalSpaces(lineWidth));
+        if(configuration.getBorderRight())
+            stringBuilder.append(configuration.getBorderLineType().getVerticalLine());
+        stringBuilder.append(getHorizontalSpaces(configuration.getMarginRight()));
+    }
+
+    @SuppressWarnings("ConstantConditions") // all values are set
+    private void drawInnerLine(@NotNull StringBuilder stringBuilder,
+                               int lineWidth,
+                               @NotNull LineType lineType) {
+        stringBuilder.append(getHorizontalSpaces(configuration.getMarginLeft()));
+        if(configuration.getBorderLeft())
+            stringBuilder.append(configuration.getBorderLineType().getRightTIntersection());
+        stringBuilder.append(getNCharacterString(lineType.getHorizontalLine(), lineWidth));
+        if(configuration.getBorderRight())
+            stringBuilder.append(configuration.getBorderLineType().getLeftTIntersection());
+        stringBuilder.append(getHorizontalSpaces(configuration.getMarginRight()));
+    }
+
+    @SuppressWarnings("ConstantConditions") // all values are set
+    private void drawContentLine(@NotNull StringBuilder stringBuilder,
+                                 @NotNull CharSequence line,
+                                 int contentWidth) {
+        stringBuilder.append(getHorizontalSpaces(configuration.getMarginLeft()));
+        if(configuration.getBorderLeft())
+            stringBuilder.append(configuration.getBorderLineType().getVerticalLine());
+        stringBuilder
+                .append(getHorizontalSpaces(configuration.getPaddingLeft()))
+                .append(line);
+        int rightPadding = configuration.getPaddingRight() + (contentWidth - line.length());
+        stringBuilder.append(getHorizontalSpaces(rightPadding));
+        if(configuration.getBorderRight())
+            stringBuilder.append(configuration.getBorderLineType().getVerticalLine());
+        stringBuilder.append(getHorizontalSpaces(configuration.getMarginRight()));
+    }
+
+    @NotNull
+    private static List<CharSequence> splitLineEveryNChars(@NotNull CharSequence string,
+                                                           int partitionSize) {
+        List<CharSequence> parts = new ArrayList<>();
+        int len = string.length();
+        if(len <= partitionSize) parts.add(string);
+        else {
+            for (int i = 0; i < len; i += partitionSize)
+                parts.add(string.subSequence(i, Math.min(len, i + partitionSize)));
+        }
+        return parts;
+    }
+
+    @NotNull
+    private static String getHorizontalSpaces(int length) {
+        return getNCharacterString(' ', length);
+    }
+
+    @NotNull
+    private static String getNCharacterString(char character, int length) {
+        StringBuilder outputBuffer = new StringBuilder(length);
+        for (int i = 0; i < length; i++) outputBuffer.append(character);
+        return outputBuffer.toString();
+    }
+
+}
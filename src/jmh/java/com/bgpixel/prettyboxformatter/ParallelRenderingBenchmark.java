@@ -0,0 +1,79 @@
+package com.bgpixel.prettyboxformatter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/** format of a box with many lines, drawn on the calling thread or in parallel (see
+ *  ParallelRendering), for various sizes of the common pool. The crossover point of the two is
+ *  where {@link PrettyBoxFormatter#DEFAULT_PARALLEL_RENDERING_THRESHOLD} belongs.<br/>
+ *  Each parameter combination runs in a fork of its own, so the common pool parallelism is set
+ *  before the pool is first used; setup fails if it's too late. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParallelRenderingBenchmark {
+
+    @Param({ "10000", "100000", "1000000" })
+    public int lines;
+
+    /** Parallelism of the common pool. */
+    @Param({ "1", "2", "4", "8" })
+    public int parallelism;
+
+    private PrettyBoxFormatter sequentialFormatter;
+    private PrettyBoxFormatter parallelFormatter;
+    private List<CharSequence> content;
+
+    @Setup
+    public void setUp() {
+        System.setProperty("java.util.concurrent.ForkJoinPool.common.parallelism",
+                Integer.toString(parallelism));
+        if(ForkJoinPool.getCommonPoolParallelism() != parallelism)
+            throw new IllegalStateException("Common pool already started with parallelism "
+                    + ForkJoinPool.getCommonPoolParallelism());
+
+        PrettyBoxConfiguration configuration = new PrettyBoxConfiguration.Builder()
+                .setPrefixEveryPrintWithNewline(false)
+                .setCharsPerLine(80)
+                .build();
+        sequentialFormatter = new PrettyBoxFormatter(configuration);
+        sequentialFormatter.setParallelRenderingThreshold(Integer.MAX_VALUE);
+        parallelFormatter = new PrettyBoxFormatter(configuration);
+        parallelFormatter.setParallelRenderingThreshold(1);
+
+        content = new ArrayList<>(lines);
+        for (int i = 0; i < lines; i++)
+            content.add("Line number " + i + " of a box too large to be drawn by one thread");
+
+        if(!sequentialFormatter.format(content).equals(parallelFormatter.format(content)))
+            throw new IllegalStateException("Boxes differ");
+    }
+
+    @Benchmark
+    public String sequential() {
+        return sequentialFormatter.format(content);
+    }
+
+    @Benchmark
+    public String parallel() {
+        return parallelFormatter.format(content);
+    }
+
+}
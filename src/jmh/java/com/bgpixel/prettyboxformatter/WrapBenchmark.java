@@ -0,0 +1,119 @@
+package com.bgpixel.prettyboxformatter;
+
+import com.bgpixel.prettyboxformatter.linetype.LineType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/** Wrapping long lines of prose with LineWrapper in each WrapMode, compared with the way lines
+ *  were split before (see LegacyBoxDrawer): a new String every n chars. Both on their own
+ *  (rows of all lines, as ranges or as Strings) and as part of formatting the whole box. A score
+ *  is the time for 1000 lines of 400 chars each, i.e. 400 KB of text. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WrapBenchmark {
+
+    private static final int LINES = 1000;
+    private static final int LINE_LENGTH = 400;
+    private static final int CHARS_PER_LINE = 80;
+
+    @State(Scope.Benchmark)
+    public static class Content {
+
+        final List<CharSequence> lines = new ArrayList<>(LINES);
+        final PrettyBoxConfiguration configuration = new PrettyBoxConfiguration.Builder()
+                .setPrefixEveryPrintWithNewline(false)
+                .setCharsPerLine(CHARS_PER_LINE)
+                .setWrapContent(true)
+                .setBorders(true)
+                .setBorderLineType(LineType.LINE)
+                .setInnerLineType(LineType.DASH_TRIPLE)
+                .setHorizontalPadding(1)
+                .setVerticalPadding(0)
+                .setMargin(0)
+                .build();
+        final int contentWidth = CHARS_PER_LINE - 4;
+        LegacyBoxDrawer legacyDrawer;
+
+        @Setup
+        public void setUp() {
+            // words of 1 to 10 letters, separated by single spaces
+            Random random = new Random(42);
+            StringBuilder line = new StringBuilder(LINE_LENGTH);
+            for (int i = 0; i < LINES; i++) {
+                line.setLength(0);
+                while(line.length() < LINE_LENGTH) {
+                    if(line.length() != 0) line.append(' ');
+                    int wordLength = 1 + random.nextInt(10);
+                    for (int j = 0; j < wordLength; j++)
+                        line.append((char) ('a' + random.nextInt(26)));
+                }
+                line.setLength(LINE_LENGTH);
+                lines.add(line.toString());
+            }
+            legacyDrawer = new LegacyBoxDrawer(configuration);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Wrapping {
+
+        @Param({ "CHARACTER", "WORD", "OPTIMAL" })
+        public WrapMode wrapMode;
+
+        final LineWrapper wrapper = new LineWrapper();
+        PrettyBoxFormatter formatter;
+
+        @Setup
+        public void setUp(Content content) {
+            formatter = new PrettyBoxFormatter(
+                    PrettyBoxConfiguration.Builder.createFromInstance(content.configuration)
+                            .setWrapMode(wrapMode)
+                            .build());
+        }
+    }
+
+    /** Rows of all lines, kept as ranges of the original lines. */
+    @Benchmark
+    public int wrap(Wrapping wrapping, Content content) {
+        int rows = 0;
+        for (CharSequence line : content.lines) {
+            wrapping.wrapper.wrap(line, content.contentWidth, wrapping.wrapMode);
+            rows += wrapping.wrapper.getCount();
+        }
+        return rows;
+    }
+
+    /** Rows of all lines, as new Strings. */
+    @Benchmark
+    public List<CharSequence> legacySplit(Content content) {
+        return LegacyBoxDrawer.splitLinesToFitBox(content.lines, content.contentWidth);
+    }
+
+    @Benchmark
+    public String format(Wrapping wrapping, Content content) {
+        return wrapping.formatter.format(content.lines);
+    }
+
+    @Benchmark
+    public String legacyFormat(Content content) {
+        return content.legacyDrawer.format(content.lines);
+    }
+
+}
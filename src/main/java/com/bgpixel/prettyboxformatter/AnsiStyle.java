@@ -0,0 +1,87 @@
+package com.bgpixel.prettyboxformatter;
+
+import org.jetbrains.annotations.NotNull;
+
+/** ANSI escape sequences in content, e.g. SGR color codes. Escape sequences take up no columns
+ *  (see DisplayWidth) and are never split.<br/>
+ *  A style active at the end of a row is reset before the right padding and border (even if
+ *  the line fits into a single row) and, when the line is split into several rows, applied again
+ *  at the start of the next one, so each row is colored just like its part of the original line,
+ *  and borders never are. */
+final class AnsiStyle {
+
+    static final char ESCAPE = '\u001B';
+    static final String RESET = "\u001B[0m";
+
+    private static final char BELL = '\u0007';
+
+    private AnsiStyle() {}
+
+    /** True if given line contains an escape character. */
+    static boolean containsEscape(@NotNull CharSequence line) {
+        for(int i = 0; i < line.length(); i++)
+            if(line.charAt(i) == ESCAPE) return true;
+        return false;
+    }
+
+    /** Returns the end of the escape sequence starting at given index (which must hold the escape
+     *  character). Handles CSI sequences (including SGR), OSC sequences and two-char escapes.
+     *  Sequences cut off by the end of the line end there. */
+    static int escapeEnd(@NotNull CharSequence line, int start, int end) {
+        int i = start + 1;
+        if(i == end) return i;
+
+        char type = line.charAt(i++);
+        if(type == '[') {
+            // CSI: parameter bytes, intermediate bytes, one final byte
+            while(i < end && line.charAt(i) >= 0x30 && line.charAt(i) <= 0x3F) i++;
+            while(i < end && line.charAt(i) >= 0x20 && line.charAt(i) <= 0x2F) i++;
+            if(i < end && line.charAt(i) >= 0x40 && line.charAt(i) <= 0x7E) i++;
+            return i;
+        }
+        if(type == ']') {
+            // OSC: terminated by BEL or by ESC \
+            while(i < end) {
+                char c = line.charAt(i++);
+                if(c == BELL) break;
+                if(c == ESCAPE && i < end && line.charAt(i) == '\\') return i + 1;
+            }
+            return i;
+        }
+        return i;
+    }
+
+    /** Applies SGR sequences in given part of the line to the style: a reset clears it, any
+     *  other SGR sequence is appended to it. */
+    static void track(@NotNull CharSequence line,
+                      int start,
+                      int end,
+                      @NotNull StringBuilder style) {
+        int i = start;
+        while(i < end) {
+            if(line.charAt(i) != ESCAPE) {
+                i++;
+                continue;
+            }
+
+            int sequenceEnd = escapeEnd(line, i, end);
+            if(isSgr(line, i, sequenceEnd)) {
+                if(isReset(line, i, sequenceEnd)) style.setLength(0);
+                else style.append(line, i, sequenceEnd);
+            }
+            i = sequenceEnd;
+        }
+    }
+
+    private static boolean isSgr(@NotNull CharSequence line, int start, int end) {
+        return end - start >= 3 && line.charAt(start + 1) == '[' && line.charAt(end - 1) == 'm';
+    }
+
+    /** True for ESC[m and ESC[0m (any number of zeros). */
+    private static boolean isReset(@NotNull CharSequence line, int start, int end) {
+        for(int i = start + 2; i < end - 1; i++)
+            if(line.charAt(i) != '0') return false;
+        return true;
+    }
+
+}
@@ -0,0 +1,81 @@
+package com.bgpixel.prettyboxformatter;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.CharBuffer;
+
+/** BoxSink that outputs to an Appendable given by the client (e.g. a StringBuilder, a Writer or a
+ *  PrintStream). */
+class AppendableBoxSink extends BoxSink {
+
+    @NotNull private Appendable target;
+
+    AppendableBoxSink(@NotNull Appendable target) {
+        this.target = target;
+    }
+
+    /** Makes the sink draw a new box into given Appendable. */
+    void reset(@NotNull Appendable target) {
+        this.target = target;
+        resetRows(false);
+    }
+
+    @Override
+    void appendNewline() throws IOException {
+        target.append(NEWLINE);
+    }
+
+    @NotNull @Override
+    BoxSink append(@NotNull EncodedString encodedString) throws IOException {
+        target.append(encodedString.getText());
+        return this;
+    }
+
+    @NotNull @Override
+    BoxSink append(@NotNull EncodedString encodedString, int start, int end) throws IOException {
+        target.append(encodedString.getText(), start, end);
+        return this;
+    }
+
+    @NotNull @Override
+    BoxSink append(@NotNull CharSequence charSequence) throws IOException {
+        if(charSequence instanceof LineSlice) return append(charSequence, 0, charSequence.length());
+        target.append(charSequence);
+        return this;
+    }
+
+    /** Slices are appended straight from their source line. Chars of array-backed CharBuffers are
+     *  appended in bulk to StringBuilders and Writers, as are Strings to Writers, which would
+     *  otherwise copy them one by one or into a temporary String. */
+    @NotNull @Override
+    BoxSink append(@NotNull CharSequence charSequence, int start, int end) throws IOException {
+        if(charSequence instanceof LineSlice) {
+            LineSlice slice = (LineSlice) charSequence;
+            charSequence = slice.getSource();
+            start += slice.getStart();
+            end += slice.getStart();
+        }
+
+        if(charSequence instanceof CharBuffer && ((CharBuffer) charSequence).hasArray()) {
+            CharBuffer buffer = (CharBuffer) charSequence;
+            int offset = buffer.arrayOffset() + buffer.position() + start;
+            if(target instanceof StringBuilder) {
+                ((StringBuilder) target).append(buffer.array(), offset, end - start);
+                return this;
+            }
+            if(target instanceof Writer) {
+                ((Writer) target).write(buffer.array(), offset, end - start);
+                return this;
+            }
+        } else if(charSequence instanceof String && target instanceof Writer) {
+            ((Writer) target).write((String) charSequence, start, end - start);
+            return this;
+        }
+
+        target.append(charSequence, start, end);
+        return this;
+    }
+
+}
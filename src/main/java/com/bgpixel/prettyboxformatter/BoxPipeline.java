@@ -0,0 +1,350 @@
+package com.bgpixel.prettyboxformatter;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/** Renders boxes in the background. Publishing a box only puts a reference to its content (and
+ *  configuration) into a preallocated lock-free ring, so it's cheap and allocation-free. Consumer
+ *  threads take boxes from the ring, render them using the given PrettyBoxFormatter and write
+ *  them into the target in batches, each box followed by a newline.<br/>
+ *  What happens when the ring is full is decided by the {@link OverflowPolicy}. Boxes dropped or
+ *  delayed (published only after waiting, or rendered by the publishing thread) are counted, and
+ *  so are boxes that failed to render on a consumer thread.<br/>
+ *  Consumers with nothing to do park until a publisher wakes one of them up, so an idle pipeline
+ *  takes no CPU time.<br/>
+ *  With a single consumer, boxes published by one thread are written in the order they were
+ *  published. With more consumers, that's only true within a batch; boxes are never split by each
+ *  other though, as the target is only written to while holding its monitor.<br/>
+ *  Content must not be modified after it's published. PrettyBoxable's toStringLines is called on a
+ *  consumer thread. */
+public final class BoxPipeline implements Closeable {
+
+    /** What publishing does when the ring is full. */
+    public enum OverflowPolicy {
+        /** Wait until a consumer makes room. The box is counted as delayed. */
+        BLOCK,
+        /** Discard the oldest box in the ring to make room. The discarded box is counted as
+         *  dropped. */
+        DROP_OLDEST,
+        /** Discard the box being published. It is counted as dropped. */
+        DROP_NEWEST,
+        /** Render the box on the publishing thread and write it right away. The box is counted as
+         *  delayed. */
+        RENDER_SYNCHRONOUSLY
+    }
+
+    /** Max number of boxes a consumer renders before writing them into the target. */
+    static final int MAX_BATCH_SIZE = 64;
+
+    /** Largest batch buffer a consumer keeps between batches. */
+    private static final int MAX_RETAINED_BATCH_CHARS = 64 * 1024;
+
+    /** Consumers spin, then yield, then park until woken up while the ring is empty. Publishers
+     *  waiting for room (see {@link OverflowPolicy#BLOCK}) park for up to MAX_IDLE_PARK_NANOS, and
+     *  so does close between checks for active publishers. */
+    private static final int IDLE_SPINS = 100;
+    private static final int IDLE_YIELDS = 100;
+    private static final long MAX_IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @NotNull private final PrettyBoxFormatter formatter;
+    @NotNull private final Appendable target;
+    @NotNull private final OverflowPolicy overflowPolicy;
+    @NotNull private final BoxRing ring;
+    @NotNull private final Thread[] consumers;
+    /** 1 for each consumer that is parked, or about to park, and should be woken up. */
+    @NotNull private final AtomicIntegerArray waiting;
+
+    @NotNull private final AtomicLong droppedBoxes = new AtomicLong();
+    @NotNull private final AtomicLong delayedBoxes = new AtomicLong();
+    @NotNull private final AtomicLong failedBoxes = new AtomicLong();
+
+    /** Number of threads currently publishing. Close waits for them, so no box gets lost. */
+    @NotNull private final AtomicInteger activePublishers = new AtomicInteger();
+    private volatile boolean closed = false;
+    /** Thread waiting in close for publishers; the last one to finish unparks it. */
+    @Nullable private volatile Thread closingThread;
+
+    /** First exception thrown by the target on a consumer thread; rethrown by close. */
+    @NotNull private final AtomicReference<IOException> failure = new AtomicReference<>();
+
+    /** Creates a pipeline with a single consumer thread. */
+    public BoxPipeline(@NotNull PrettyBoxFormatter formatter,
+                       @NotNull Appendable target,
+                       int capacity,
+                       @NotNull OverflowPolicy overflowPolicy) {
+        this(formatter, target, capacity, overflowPolicy, 1);
+    }
+
+    /** @param capacity max number of boxes waiting to be rendered, rounded up to a power of two
+     *  (at least 2)
+     *  @param consumerThreads number of (daemon) threads rendering and writing boxes */
+    public BoxPipeline(@NotNull PrettyBoxFormatter formatter,
+                       @NotNull Appendable target,
+                       int capacity,
+                       @NotNull OverflowPolicy overflowPolicy,
+                       int consumerThreads) {
+        if(consumerThreads < 1)
+            throw new IllegalArgumentException("Invalid number of consumers: " + consumerThreads);
+
+        this.formatter = formatter;
+        this.target = target;
+        this.overflowPolicy = overflowPolicy;
+        this.ring = new BoxRing(capacity);
+
+        consumers = new Thread[consumerThreads];
+        waiting = new AtomicIntegerArray(consumerThreads);
+        for(int i = 0; i < consumerThreads; i++) {
+            final int consumer = i;
+            consumers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() { consume(consumer); }
+            }, "BoxPipeline-consumer-" + i);
+            consumers[i].setDaemon(true);
+            consumers[i].start();
+        }
+    }
+
+    /** Publishes a box, formatted like {@link PrettyBoxFormatter#format(List)}. Returns false if
+     *  the box was dropped (only with {@link OverflowPolicy#DROP_NEWEST}).
+     *  @throws IllegalStateException if the pipeline has been closed
+     *  @throws UncheckedIOException if the box was rendered by the publishing thread (with
+     *  {@link OverflowPolicy#RENDER_SYNCHRONOUSLY}) and the target threw while writing it */
+    public boolean publish(@NotNull List<CharSequence> lines) {
+        return publishContent(lines, null);
+    }
+
+    /** Publishes a box, formatted like
+     *  {@link PrettyBoxFormatter#format(List, PrettyBoxConfiguration)}. See
+     *  {@link #publish(List)}. */
+    public boolean publish(@NotNull List<CharSequence> lines,
+                           @NotNull PrettyBoxConfiguration configuration) {
+        return publishContent(lines, configuration);
+    }
+
+    /** Publishes a box, formatted like {@link PrettyBoxFormatter#format(PrettyBoxable)}. See
+     *  {@link #publish(List)}. */
+    public boolean publish(@NotNull PrettyBoxable prettyBoxable) {
+        return publishContent(prettyBoxable, null);
+    }
+
+    /** Publishes a box, formatted like
+     *  {@link PrettyBoxFormatter#format(PrettyBoxable, PrettyBoxConfiguration)}. See
+     *  {@link #publish(List)}. */
+    public boolean publish(@NotNull PrettyBoxable prettyBoxable,
+                           @NotNull PrettyBoxConfiguration configuration) {
+        return publishContent(prettyBoxable, configuration);
+    }
+
+    /** Number of boxes dropped because the ring was full. */
+    public long getDroppedCount() { return droppedBoxes.get(); }
+
+    /** Number of boxes whose publishing had to wait for room in the ring, or which were rendered
+     *  by the publishing thread. */
+    public long getDelayedCount() { return delayedBoxes.get(); }
+
+    /** Number of boxes skipped because rendering them threw an exception on a consumer thread
+     *  (e.g. a failing toStringLines). Such boxes are not counted as dropped. */
+    public long getFailedCount() { return failedBoxes.get(); }
+
+    /** Stops accepting boxes, waits until all published boxes are written and consumer threads
+     *  have finished. The target is not closed.
+     *  @throws IOException the first exception thrown by the target while writing boxes */
+    @Override
+    public void close() throws IOException {
+        closingThread = Thread.currentThread();
+        closed = true;
+        // A publisher that finished before closed was set didn't unpark anyone, so the count is
+        // checked before each park. Another thread closing at the same time may have replaced
+        // closingThread, hence the timeout.
+        while(activePublishers.get() != 0) LockSupport.parkNanos(this, MAX_IDLE_PARK_NANOS);
+
+        boolean interrupted = false;
+        for(Thread consumer : consumers) {
+            LockSupport.unpark(consumer);
+            while(consumer.isAlive()) {
+                try {
+                    consumer.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if(interrupted) Thread.currentThread().interrupt();
+
+        IOException failure = this.failure.get();
+        if(failure != null) throw failure;
+    }
+
+
+    // ------------------------------------------------------------------------------------ INTERNAL
+
+    private boolean publishContent(@NotNull Object content,
+                                   @Nullable PrettyBoxConfiguration configuration) {
+        activePublishers.incrementAndGet();
+        try {
+            if(closed) throw new IllegalStateException("Pipeline has been closed");
+            if(ring.offer(content, configuration)) {
+                wakeConsumer();
+                return true;
+            }
+            return publishToFullRing(content, configuration);
+        } finally {
+            if(activePublishers.decrementAndGet() == 0 && closed) {
+                Thread closingThread = this.closingThread;
+                if(closingThread != null) LockSupport.unpark(closingThread);
+            }
+        }
+    }
+
+    private boolean publishToFullRing(@NotNull Object content,
+                                      @Nullable PrettyBoxConfiguration configuration) {
+        switch (overflowPolicy) {
+            case BLOCK:
+                delayedBoxes.incrementAndGet();
+                int attempts = 0;
+                while(!ring.offer(content, configuration)) idle(attempts++);
+                wakeConsumer();
+                return true;
+
+            case DROP_OLDEST:
+                while(!ring.offer(content, configuration))
+                    if(ring.poll()) droppedBoxes.incrementAndGet();
+                wakeConsumer();
+                return true;
+
+            case DROP_NEWEST:
+                droppedBoxes.incrementAndGet();
+                return false;
+
+            case RENDER_SYNCHRONOUSLY:
+                delayedBoxes.incrementAndGet();
+                StringBuilder box = new StringBuilder();
+                render(box, content, configuration);
+                try {
+                    write(box);
+                } catch (IOException e) {
+                    // the publisher is still there to be told, unlike with boxes written later
+                    throw new UncheckedIOException(e);
+                }
+                return true;
+
+            default:
+                throw new IllegalStateException("Unknown overflow policy: " + overflowPolicy);
+        }
+    }
+
+    /** Consumer thread loop. Exits once the pipeline is closed and the ring is empty. */
+    private void consume(int consumer) {
+        BoxRing.Entry entry = new BoxRing.Entry();
+        StringBuilder batch = new StringBuilder();
+        int idleAttempts = 0;
+
+        while(true) {
+            int batchSize = 0;
+            while(batchSize < MAX_BATCH_SIZE && ring.poll(entry)) {
+                int batchLength = batch.length();
+                try {
+                    //noinspection ConstantConditions
+                    render(batch, entry.content, entry.configuration);
+                } catch (RuntimeException e) {
+                    // E.g. failing toStringLines; the box is skipped, the consumer keeps going
+                    batch.setLength(batchLength);
+                    failedBoxes.incrementAndGet();
+                }
+                entry.set(null, null);
+                batchSize++;
+            }
+
+            if(batchSize != 0) {
+                try {
+                    write(batch);
+                } catch (IOException e) {
+                    failure.compareAndSet(null, e);
+                }
+                if(batch.capacity() > MAX_RETAINED_BATCH_CHARS) batch = new StringBuilder();
+                else batch.setLength(0);
+                idleAttempts = 0;
+            } else if(closed && ring.isEmpty() && activePublishers.get() == 0) {
+                return;
+            } else {
+                awaitBoxes(consumer, idleAttempts++);
+            }
+        }
+    }
+
+    /** Appends the rendered box, followed by a newline. */
+    private void render(@NotNull StringBuilder output,
+                        @NotNull Object content,
+                        @Nullable PrettyBoxConfiguration configuration) {
+        try {
+            if(content instanceof PrettyBoxable) {
+                PrettyBoxable prettyBoxable = (PrettyBoxable) content;
+                if(configuration == null) formatter.formatTo(output, prettyBoxable);
+                else formatter.formatTo(output, prettyBoxable, configuration);
+            } else {
+                @SuppressWarnings("unchecked")
+                List<CharSequence> lines = (List<CharSequence>) content;
+                if(configuration == null) formatter.formatTo(output, lines);
+                else formatter.formatTo(output, lines, configuration);
+            }
+        } catch (IOException e) {
+            // StringBuilder never throws IOException
+            throw new IllegalStateException(e);
+        }
+        output.append(BoxSink.NEWLINE);
+    }
+
+    private void write(@NotNull CharSequence boxes) throws IOException {
+        synchronized (target) {
+            target.append(boxes);
+            if(target instanceof Flushable) ((Flushable) target).flush();
+        }
+    }
+
+    /** Spins, then yields, then parks until a publisher (or close) wakes the consumer up. */
+    private void awaitBoxes(int consumer, int attempts) {
+        if(attempts < IDLE_SPINS) return;
+        if(attempts < IDLE_SPINS + IDLE_YIELDS) {
+            Thread.yield();
+            return;
+        }
+        waiting.set(consumer, 1);
+        // A publisher that offered before the flag was set didn't see it, so check again. Either
+        // this sees the box, or the publisher sees the flag.
+        if(ring.isEmpty() && !closed) LockSupport.park(this);
+        waiting.set(consumer, 0);
+    }
+
+    /** Unparks one waiting consumer, if any. */
+    private void wakeConsumer() {
+        for(int i = 0; i < consumers.length; i++) {
+            if(waiting.get(i) == 1 && waiting.compareAndSet(i, 1, 0)) {
+                LockSupport.unpark(consumers[i]);
+                return;
+            }
+        }
+    }
+
+    /** Backoff of a publisher waiting for room in the ring. */
+    private static void idle(int attempts) {
+        if(attempts < IDLE_SPINS) return;
+        if(attempts < IDLE_SPINS + IDLE_YIELDS) Thread.yield();
+        else {
+            int parks = Math.min(attempts - IDLE_SPINS - IDLE_YIELDS, 20);
+            LockSupport.parkNanos(Math.min(MAX_IDLE_PARK_NANOS, 1000L << parks));
+        }
+    }
+
+}
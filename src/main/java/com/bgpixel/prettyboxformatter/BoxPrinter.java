@@ -0,0 +1,127 @@
+package com.bgpixel.prettyboxformatter;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+
+/** Prints boxes to an OutputStream (e.g. System.out) or a channel shared by many threads, so that
+ *  a box is never split by another box or by anything else printed to the same target.<br/>
+ *  Each box (followed by a newline) is first drawn as UTF-8 into a buffer owned by the printing
+ *  thread, without any locking. The whole box is then handed to the target in a single write
+ *  call, holding the target's monitor only for that write, so BoxPrinters sharing a target never
+ *  interleave. PrintStream writes each call as a whole, so regular println calls don't get mixed
+ *  into a box either. Boxes larger than
+ *  {@link #MAX_RETAINED_BUFFER_SIZE} bytes are drawn into a one-off buffer of exact size.<br/>
+ *  Uses the given PrettyBoxFormatter's configuration. Thread-safe. */
+public final class BoxPrinter {
+
+    /** Largest per-thread buffer kept between boxes. */
+    public static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
+
+    private static final int INITIAL_BUFFER_SIZE = 4 * 1024;
+
+    @NotNull private static final ThreadLocal<ByteBuffer> BUFFER = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() { return ByteBuffer.allocate(INITIAL_BUFFER_SIZE); }
+    };
+
+    @NotNull private final PrettyBoxFormatter formatter;
+    @Nullable private final OutputStream outputStream;
+    @Nullable private final WritableByteChannel channel;
+
+    public BoxPrinter(@NotNull PrettyBoxFormatter formatter, @NotNull OutputStream outputStream) {
+        this.formatter = formatter;
+        this.outputStream = outputStream;
+        this.channel = null;
+    }
+
+    public BoxPrinter(@NotNull PrettyBoxFormatter formatter, @NotNull WritableByteChannel channel) {
+        this.formatter = formatter;
+        this.outputStream = null;
+        this.channel = channel;
+    }
+
+    /** Prints a box like {@link PrettyBoxFormatter#format(PrettyBoxable)} would format it,
+     *  followed by a newline. */
+    public void print(@NotNull PrettyBoxable prettyBoxable) throws IOException {
+        print(null, prettyBoxable.toStringLines(), null, prettyBoxable);
+    }
+
+    /** Prints a box like {@link PrettyBoxFormatter#format(PrettyBoxable, PrettyBoxConfiguration)}
+     *  would format it, followed by a newline. */
+    public void print(@NotNull PrettyBoxable prettyBoxable,
+                      @NotNull PrettyBoxConfiguration configuration) throws IOException {
+        print(null, prettyBoxable.toStringLines(), configuration, prettyBoxable);
+    }
+
+    /** Prints a box like {@link PrettyBoxFormatter#format(List)} would format it, followed by a
+     *  newline. */
+    public void print(@NotNull List<CharSequence> lines) throws IOException {
+        print(null, lines, null, lines);
+    }
+
+    /** Prints a box like {@link PrettyBoxFormatter#format(List, PrettyBoxConfiguration)} would
+     *  format it, followed by a newline. */
+    public void print(@NotNull List<CharSequence> lines,
+                      @NotNull PrettyBoxConfiguration configuration) throws IOException {
+        print(null, lines, configuration, lines);
+    }
+
+    /** Prints a box like {@link PrettyBoxFormatter#format(String, PrettyBoxable)} would format
+     *  it, followed by a newline. */
+    public void print(@NotNull String title,
+                      @NotNull PrettyBoxable prettyBoxable) throws IOException {
+        print(title, prettyBoxable.toStringLines(), null, prettyBoxable);
+    }
+
+    /** Prints a box like
+     *  {@link PrettyBoxFormatter#format(String, PrettyBoxable, PrettyBoxConfiguration)} would
+     *  format it, followed by a newline. */
+    public void print(@NotNull String title,
+                      @NotNull PrettyBoxable prettyBoxable,
+                      @NotNull PrettyBoxConfiguration configuration) throws IOException {
+        print(title, prettyBoxable.toStringLines(), configuration, prettyBoxable);
+    }
+
+    /** Prints a box like {@link PrettyBoxFormatter#format(String, List)} would format it,
+     *  followed by a newline. */
+    public void print(@NotNull String title, @NotNull List<CharSequence> lines) throws IOException {
+        print(title, lines, null, lines);
+    }
+
+    /** Prints a box like {@link PrettyBoxFormatter#format(String, List, PrettyBoxConfiguration)}
+     *  would format it, followed by a newline. */
+    public void print(@NotNull String title,
+                      @NotNull List<CharSequence> lines,
+                      @NotNull PrettyBoxConfiguration configuration) throws IOException {
+        print(title, lines, configuration, lines);
+    }
+
+    private void print(@Nullable String title,
+                       @NotNull List<CharSequence> lines,
+                       @Nullable PrettyBoxConfiguration configuration,
+                       @NotNull Object sourceObject) throws IOException {
+        ByteBuffer buffer = formatter.runPrintingTask(BUFFER.get(),
+                title, lines, configuration, sourceObject);
+
+        // Only the write itself is done while holding the lock
+        if(outputStream != null) {
+            synchronized (outputStream) {
+                outputStream.write(buffer.array(), buffer.arrayOffset(), buffer.limit());
+                outputStream.flush();
+            }
+        } else if(channel != null) {
+            synchronized (channel) {
+                while(buffer.hasRemaining()) channel.write(buffer);
+            }
+        }
+
+        if(buffer.capacity() <= MAX_RETAINED_BUFFER_SIZE) BUFFER.set(buffer);
+    }
+
+}
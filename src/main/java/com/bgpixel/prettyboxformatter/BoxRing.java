@@ -0,0 +1,113 @@
+package com.bgpixel.prettyboxformatter;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** Bounded lock-free multi-producer, multi-consumer queue of boxes waiting to be rendered, used by
+ *  BoxPipeline. All slots are allocated up front and reused, so offering and polling never
+ *  allocate.<br/>
+ *  Each slot has a sequence number telling whether it's free for the producer at a given position
+ *  (sequence == position) or filled for the consumer at that position (sequence == position + 1).
+ *  With a single slot, a slot freed at position p (sequence p + 1) would look filled at p + 1, so
+ *  there are always at least two.
+ *  Producers and consumers claim positions with a single CAS, then only touch their own slot. */
+final class BoxRing {
+
+    /** A box waiting to be rendered. Also used by consumers to receive polled entries. */
+    static final class Entry {
+        /** Either a PrettyBoxable or a List of lines. */
+        @Nullable Object content;
+        @Nullable PrettyBoxConfiguration configuration;
+
+        void set(@Nullable Object content, @Nullable PrettyBoxConfiguration configuration) {
+            this.content = content;
+            this.configuration = configuration;
+        }
+    }
+
+    @NotNull private final Entry[] slots;
+    @NotNull private final AtomicLongArray sequences;
+    private final int mask;
+
+    @NotNull private final AtomicLong producerPosition = new AtomicLong();
+    @NotNull private final AtomicLong consumerPosition = new AtomicLong();
+
+    /** @param capacity rounded up to a power of two, at least 2 */
+    BoxRing(int capacity) {
+        if(capacity < 1 || capacity > 1 << 30)
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        int size = Math.max(2, Integer.highestOneBit(capacity));
+        if(size < capacity) size <<= 1;
+
+        slots = new Entry[size];
+        sequences = new AtomicLongArray(size);
+        for(int i = 0; i < size; i++) {
+            slots[i] = new Entry();
+            sequences.set(i, i);
+        }
+        mask = size - 1;
+    }
+
+    int capacity() { return slots.length; }
+
+    /** Adds a box to the ring. Returns false if the ring is full. */
+    boolean offer(@NotNull Object content, @Nullable PrettyBoxConfiguration configuration) {
+        long position = producerPosition.get();
+        int index;
+        while(true) {
+            index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if(difference == 0) {
+                if(producerPosition.compareAndSet(position, position + 1)) break;
+                position = producerPosition.get();
+            } else if(difference < 0) {
+                return false; // slot still holds an entry from the previous lap
+            } else {
+                position = producerPosition.get(); // another producer took this position
+            }
+        }
+
+        slots[index].set(content, configuration);
+        sequences.set(index, position + 1);
+        return true;
+    }
+
+    /** Moves the oldest box into the given entry. Returns false if the ring is empty. */
+    boolean poll(@NotNull Entry into) { return take(into); }
+
+    /** Discards the oldest box. Returns false if the ring is empty. */
+    boolean poll() { return take(null); }
+
+    /** True if there are no boxes in the ring (may change at any moment, if others are active). */
+    boolean isEmpty() {
+        return consumerPosition.get() >= producerPosition.get();
+    }
+
+    /** Takes the oldest box, moving it into the given entry, if any. */
+    private boolean take(@Nullable Entry into) {
+        long position = consumerPosition.get();
+        int index;
+        while(true) {
+            index = (int) position & mask;
+            long difference = sequences.get(index) - (position + 1);
+            if(difference == 0) {
+                if(consumerPosition.compareAndSet(position, position + 1)) break;
+                position = consumerPosition.get();
+            } else if(difference < 0) {
+                return false; // slot not filled yet
+            } else {
+                position = consumerPosition.get(); // another consumer took this position
+            }
+        }
+
+        Entry slot = slots[index];
+        if(into != null) into.set(slot.content, slot.configuration);
+        slot.set(null, null);
+        sequences.set(index, position + slots.length);
+        return true;
+    }
+
+}
@@ -0,0 +1,169 @@
+package com.bgpixel.prettyboxformatter;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Publishes a box row by row, rendering rows only as they are requested, so a slow subscriber
+ *  throttles rendering instead of having whole boxes buffered for it.<br/>
+ *  Each row is emitted without a newline. The start and the end of the box (warnings, margins,
+ *  borders and padding before and after content) are emitted as a single item each, possibly
+ *  spanning several rows. Joining all items with newlines gives the same box as the corresponding
+ *  format method.<br/>
+ *  Subscriber and Subscription have the same methods and contract as the ones in
+ *  java.util.concurrent.Flow (and Reactive Streams), which this library can't use directly as it
+ *  targets Java 8, so adapting them takes a one-line lambda per method. Every subscriber gets its
+ *  own copy of the box. Rows are emitted on the thread calling request. Created by
+ *  {@link PrettyBoxFormatter#publishRows(PrettyBoxable)}. */
+public final class BoxRowPublisher {
+
+    /** Receives rows of a box. See java.util.concurrent.Flow.Subscriber. */
+    public interface Subscriber {
+        void onSubscribe(@NotNull Subscription subscription);
+        void onNext(@NotNull String row);
+        void onError(@NotNull Throwable throwable);
+        void onComplete();
+    }
+
+    /** Demand for rows of a box. See java.util.concurrent.Flow.Subscription. */
+    public interface Subscription {
+        /** Requests given number of rows (more than zero). Long.MAX_VALUE means no limit. */
+        void request(long n);
+        /** Stops emitting rows. Rows requested but not emitted yet are never rendered. */
+        void cancel();
+    }
+
+    @NotNull private final PrettyBoxFormatter formatter;
+    @Nullable private final String title;
+    /** Either a PrettyBoxable or a List of lines. */
+    @NotNull private final Object content;
+    @Nullable private final PrettyBoxConfiguration configuration;
+
+    BoxRowPublisher(@NotNull PrettyBoxFormatter formatter,
+                    @Nullable String title,
+                    @NotNull Object content,
+                    @Nullable PrettyBoxConfiguration configuration) {
+        this.formatter = formatter;
+        this.title = title;
+        this.content = content;
+        this.configuration = configuration;
+    }
+
+    /** Subscribes to rows of the box. Nothing is rendered (and PrettyBoxable's toStringLines is not
+     *  called) until rows are requested. */
+    public void subscribe(@NotNull Subscriber subscriber) {
+        subscriber.onSubscribe(new RowSubscription(subscriber));
+    }
+
+    private final class RowSubscription implements Subscription {
+
+        @NotNull private final Subscriber subscriber;
+        @NotNull private final AtomicLong demand = new AtomicLong();
+        /** Number of pending drain requests. Only the thread raising it from zero emits rows, so
+         *  requests from onNext (or other threads) never emit concurrently or recursively. */
+        @NotNull private final AtomicInteger drainRequests = new AtomicInteger();
+        private volatile boolean cancelled = false;
+        /** Error to signal on the next drain, e.g. for an invalid request. */
+        @Nullable private volatile Throwable error;
+
+        /** Created on first request, released once done. Guarded by drainRequests. */
+        @Nullable private BoxRows rows;
+        private boolean done = false;
+
+        RowSubscription(@NotNull Subscriber subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if(n <= 0) {
+                // signalled by drain, so it's never delivered concurrently with onNext
+                if(error == null) error = new IllegalArgumentException("Invalid demand: " + n);
+                drain();
+                return;
+            }
+
+            long current;
+            long updated;
+            do {
+                current = demand.get();
+                updated = current + n < 0? Long.MAX_VALUE : current + n;
+            } while(!demand.compareAndSet(current, updated));
+
+            drain();
+        }
+
+        /** Rows are released by drain, right away unless rows are being emitted by another
+         *  thread. No signals follow. */
+        @Override
+        public void cancel() {
+            cancelled = true;
+            drain();
+        }
+
+        private void drain() {
+            if(drainRequests.getAndIncrement() != 0) return;
+
+            int requests = 1;
+            do {
+                emitRows();
+                requests = drainRequests.addAndGet(-requests);
+            } while(requests != 0);
+        }
+
+        /** Emits rows while there is demand. Completes as soon as the last row is emitted, even
+         *  if no more rows are requested. */
+        private void emitRows() {
+            while(!done) {
+                if(cancelled) {
+                    finish();
+                    return;
+                }
+                Throwable error = this.error;
+                if(error != null) {
+                    finish();
+                    subscriber.onError(error);
+                    return;
+                }
+                if(demand.get() <= 0) return;
+
+                String row;
+                boolean last;
+                try {
+                    BoxRows rows = this.rows;
+                    if(rows == null)
+                        rows = this.rows = formatter.runRowsTask(title, content, configuration);
+                    if(!rows.hasNext()) {
+                        complete();
+                        return;
+                    }
+                    row = rows.next();
+                    last = !rows.hasNext();
+                } catch (RuntimeException e) {
+                    finish();
+                    if(!cancelled) subscriber.onError(e);
+                    return;
+                }
+
+                if(demand.get() != Long.MAX_VALUE) demand.decrementAndGet();
+                subscriber.onNext(row);
+                if(last) complete();
+            }
+        }
+
+        private void complete() {
+            finish();
+            if(!cancelled) subscriber.onComplete();
+        }
+
+        /** No more signals follow; the box is released. */
+        private void finish() {
+            done = true;
+            rows = null;
+        }
+    }
+
+}
@@ -0,0 +1,123 @@
+package com.bgpixel.prettyboxformatter;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/** Draws a box lazily, a piece at a time, as the pieces are requested. Used by BoxRowPublisher.
+ *  <br/>Each piece is a single row, except for the start of the box (warnings and all rows before
+ *  content) and the end of the box (all rows after content), which are returned whole. Joining all
+ *  pieces with newlines gives the same box as {@link PrettyBoxFormatter#format(List)}.<br/>
+ *  Only content lines needed for the requested rows are read; long lines are split as they're
+ *  drawn. Not thread-safe. */
+final class BoxRows implements Iterator<String> {
+
+    @NotNull private final BoxTemplate template;
+    @NotNull private final Iterator<CharSequence> header;
+    @NotNull private final Iterator<CharSequence> content;
+    @NotNull private final Iterator<CharSequence> footer;
+
+    /** Finished rows, waiting to be returned. */
+    @NotNull private final ArrayDeque<String> rows = new ArrayDeque<>();
+    @NotNull private final RowSink sink = new RowSink();
+    @NotNull private final LineWrapper wrapper = new LineWrapper();
+    @NotNull private final StringBuilder style = new StringBuilder();
+    private boolean finished = false;
+
+    /** @param start already rendered start of the box (warnings and top rows), may be empty */
+    BoxRows(@NotNull String start,
+            @NotNull BoxTemplate template,
+            @NotNull List<CharSequence> header,
+            @NotNull List<CharSequence> content,
+            @NotNull List<CharSequence> footer) {
+        this.template = template;
+        this.header = header.iterator();
+        this.content = content.iterator();
+        this.footer = footer.iterator();
+        if(start.length() != 0) rows.add(start);
+    }
+
+    @Override
+    public boolean hasNext() {
+        while(rows.isEmpty() && !finished) drawNextLine();
+        return !rows.isEmpty();
+    }
+
+    @Override
+    public String next() {
+        if(!hasNext()) throw new NoSuchElementException();
+        return rows.poll();
+    }
+
+    /** Draws the rows of the next line (or the end of the box). The last drawn row is kept in the
+     *  sink until the next one is started, as there may be more rows for the same line. */
+    private void drawNextLine() {
+        try {
+            if(header.hasNext()) template.drawLine(sink, header.next(), wrapper, style);
+            else if(content.hasNext()) template.drawLine(sink, content.next(), wrapper, style);
+            else if(footer.hasNext()) template.drawLine(sink, footer.next(), wrapper, style);
+            else {
+                template.drawFooter(sink);
+                if(template.hasFooter()) sink.rowOpen = true;
+                sink.finishRow();
+                finished = true;
+                return;
+            }
+            sink.rowOpen = true; // every line is drawn as at least one (possibly empty) row
+        } catch (IOException e) {
+            // RowSink never throws IOException
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Collects drawn rows; a row is finished when the next one starts. */
+    private final class RowSink extends BoxSink {
+
+        @NotNull private final StringBuilder row = new StringBuilder();
+        /** True if a row has been started and not yet moved to rows. */
+        private boolean rowOpen = false;
+
+        void finishRow() {
+            if(!rowOpen) return;
+            rows.add(row.toString());
+            row.setLength(0);
+            rowOpen = false;
+        }
+
+        /** Called when the next row starts, so the current one is finished. */
+        @Override
+        void appendNewline() {
+            rows.add(row.toString());
+            row.setLength(0);
+        }
+
+        @NotNull @Override
+        BoxSink append(@NotNull EncodedString encodedString) {
+            row.append(encodedString.getText());
+            return this;
+        }
+
+        @NotNull @Override
+        BoxSink append(@NotNull EncodedString encodedString, int start, int end) {
+            row.append(encodedString.getText(), start, end);
+            return this;
+        }
+
+        @NotNull @Override
+        BoxSink append(@NotNull CharSequence charSequence) {
+            row.append(charSequence);
+            return this;
+        }
+
+        @NotNull @Override
+        BoxSink append(@NotNull CharSequence charSequence, int start, int end) {
+            row.append(charSequence, start, end);
+            return this;
+        }
+    }
+
+}
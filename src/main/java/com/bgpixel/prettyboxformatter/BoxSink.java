@@ -0,0 +1,45 @@
+package com.bgpixel.prettyboxformatter;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+
+/** Destination of a box that is being drawn. Takes care of separating box rows, so "draw" methods
+ *  only have to output the content of a single row. No newline is output after the last row. */
+abstract class BoxSink {
+
+    static final String NEWLINE = System.getProperty("line.separator");
+
+    private boolean rowStarted = false;
+
+    /** Must be called before drawing each row of the box. */
+    final void startRow() throws IOException {
+        if(rowStarted) appendNewline();
+        rowStarted = true;
+    }
+
+    /** Makes the sink ready to draw a new box (rowStarted false), or to continue drawing a box
+     *  whose previous rows were drawn elsewhere (rowStarted true). */
+    void resetRows(boolean rowStarted) {
+        this.rowStarted = rowStarted;
+    }
+
+    abstract void appendNewline() throws IOException;
+
+    /** Appends a piece of box template. */
+    @NotNull
+    abstract BoxSink append(@NotNull EncodedString encodedString) throws IOException;
+
+    /** Appends a part of a piece of box template, given as char offsets. */
+    @NotNull
+    abstract BoxSink append(@NotNull EncodedString encodedString, int start, int end)
+            throws IOException;
+
+    @NotNull
+    abstract BoxSink append(@NotNull CharSequence charSequence) throws IOException;
+
+    @NotNull
+    abstract BoxSink append(@NotNull CharSequence charSequence, int start, int end)
+            throws IOException;
+
+}
@@ -0,0 +1,336 @@
+package com.bgpixel.prettyboxformatter;
+
+import com.bgpixel.prettyboxformatter.line.LineWithLevel;
+import com.bgpixel.prettyboxformatter.line.LineWithType;
+import com.bgpixel.prettyboxformatter.linetype.LineType;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Ready-made pieces of a box of a single width, built once from a resolved (merged and validated)
+ *  configuration. Drawing a box using a template only copies content between these pieces.<br/>
+ *  Instances are immutable (except for the internal cache of inner lines) and thread-safe. */
+class BoxTemplate {
+
+    /** Max number of inner lines drawn with LineTypes not present in the lineset that are cached.
+     *  Prevents unbounded growth if client creates a new LineType instance for every call. */
+    private static final int MAX_EXTRA_INNER_LINES = 16;
+
+    @NotNull private final ResolvedBoxConfiguration configuration;
+    private final int contentWidth;
+    private final int lineWidth;
+
+    /** All rows drawn before content (newline prefix, top margin, top border and top padding),
+     *  already separated with newlines. Empty if there are no such rows. */
+    @NotNull private final EncodedString header;
+    /** All rows drawn after content (bottom padding, bottom border and bottom margin). */
+    @NotNull private final EncodedString footer;
+
+    /** Left margin, left border and left padding. */
+    @NotNull private final EncodedString contentRowPrefix;
+    /** Right border and right margin. Right padding is added separately, depending on content. */
+    @NotNull private final EncodedString contentRowSuffix;
+    /** A run of spaces used for right padding (spaces after content + actual padding). Content
+     *  rows take a slice of it, ending at {@link #contentRowPaddingEnd}. */
+    @NotNull private final EncodedString contentRowPadding;
+    private final int contentRowPaddingEnd;
+
+    /** Full inner line rows, including margins and borders, for each used LineType. */
+    @NotNull private final ConcurrentHashMap<LineType, EncodedString> innerLines =
+            new ConcurrentHashMap<>();
+
+    BoxTemplate(@NotNull ResolvedBoxConfiguration configuration, int contentWidth) {
+        this.configuration = configuration;
+        this.contentWidth = contentWidth;
+        this.lineWidth = contentWidth
+                + configuration.getPaddingLeft() + configuration.getPaddingRight();
+
+        StringBuilder stringBuilder = new StringBuilder();
+        LineType borderLineType = configuration.getBorderLineType();
+
+        // prefix & suffix for content rows
+        CharRuns.append(stringBuilder, ' ', configuration.getMarginLeft());
+        if(configuration.hasBorderLeft()) stringBuilder.append(borderLineType.getVerticalLine());
+        CharRuns.append(stringBuilder, ' ', configuration.getPaddingLeft());
+        contentRowPrefix = new EncodedString(stringBuilder.toString());
+
+        stringBuilder.setLength(0);
+        if(configuration.hasBorderRight()) stringBuilder.append(borderLineType.getVerticalLine());
+        CharRuns.append(stringBuilder, ' ', configuration.getMarginRight());
+        contentRowSuffix = new EncodedString(stringBuilder.toString());
+
+        contentRowPaddingEnd = contentWidth + configuration.getPaddingRight();
+        contentRowPadding = CharRuns.get(' ', contentRowPaddingEnd);
+
+        // header
+        stringBuilder.setLength(0);
+        if(configuration.isPrefixWithNewline())
+            appendRow(stringBuilder, " "); // add one space because of logcat (won't print initial \n lines)
+        for(int i = 0; i < configuration.getMarginTop(); i++)
+            appendRow(stringBuilder, " "); // one space because of logcat
+        if(configuration.hasBorderTop())
+            appendRow(stringBuilder, drawOuterLine(true));
+        if(configuration.getPaddingTop() != 0) {
+            String paddingRow = drawPaddingRow();
+            for (int i = 0; i < configuration.getPaddingTop(); i++)
+                appendRow(stringBuilder, paddingRow);
+        }
+        header = new EncodedString(stringBuilder.toString());
+
+        // footer
+        stringBuilder.setLength(0);
+        if(configuration.getPaddingBottom() != 0) {
+            String paddingRow = drawPaddingRow();
+            for (int i = 0; i < configuration.getPaddingBottom(); i++)
+                appendRow(stringBuilder, paddingRow);
+        }
+        if(configuration.hasBorderBottom())
+            appendRow(stringBuilder, drawOuterLine(false));
+        for(int i = 0; i < configuration.getMarginBottom(); i++)
+            appendRow(stringBuilder, " "); // one space because of logcat
+        footer = new EncodedString(stringBuilder.toString());
+
+        // inner lines for all LineTypes in lineset
+        for(LineType lineType : configuration.getLineset())
+            if(lineType != null && !innerLines.containsKey(lineType))
+                innerLines.put(lineType, drawInnerLine(lineType));
+    }
+
+    int getContentWidth() { return contentWidth; }
+    int getLineWidth() { return lineWidth; }
+
+    /** Length of every inner line and every content row whose display width equals its length,
+     *  in chars. */
+    int getRowLength() {
+        return contentRowPrefix.length() + contentRowPaddingEnd + contentRowSuffix.length();
+    }
+
+    boolean hasHeader() { return header.length() != 0; }
+    boolean hasFooter() { return footer.length() != 0; }
+
+
+    // ------------------------------------------------------------------------------------- MEASURE
+
+    /** Returns the number of chars (or UTF-8 bytes, if utf8 is true) drawn by drawHeader. */
+    int measureHeader(boolean utf8) { return utf8? header.getUtf8().length : header.length(); }
+
+    /** Returns the number of chars (or UTF-8 bytes, if utf8 is true) drawn by drawFooter. */
+    int measureFooter(boolean utf8) { return utf8? footer.getUtf8().length : footer.length(); }
+
+    /** Returns the number of chars (or UTF-8 bytes, if utf8 is true) drawn by drawContentLine for
+     *  a line of given display width. */
+    int measureContentLine(@NotNull CharSequence line, int width, boolean utf8) {
+        int padding = contentRowPaddingEnd - Math.min(width, contentRowPaddingEnd);
+        if(!utf8) return contentRowPrefix.length() + line.length() + padding
+                + contentRowSuffix.length();
+        return contentRowPrefix.getUtf8().length
+                + Utf8BoxSink.encodedLength(line, 0, line.length())
+                + padding
+                + contentRowSuffix.getUtf8().length;
+    }
+
+    /** Returns the number of chars (or UTF-8 bytes, if utf8 is true) drawn by drawInnerLine. */
+    int measureInnerLine(@NotNull LineType lineType, boolean utf8) {
+        return utf8? getInnerLine(lineType).getUtf8().length : getRowLength();
+    }
+
+
+    // ---------------------------------------------------------------------------------------- DRAW
+
+    void drawHeader(@NotNull BoxSink sink) throws IOException {
+        if(header.length() == 0) return;
+        sink.startRow();
+        sink.append(header);
+    }
+
+    void drawFooter(@NotNull BoxSink sink) throws IOException {
+        if(footer.length() == 0) return;
+        sink.startRow();
+        sink.append(footer);
+    }
+
+    /** Draws a content row. Given line must not be wider than content width.
+     *  @param width display width of the line, see DisplayWidth */
+    void drawContentLine(@NotNull BoxSink sink,
+                         @NotNull CharSequence line,
+                         int width) throws IOException {
+        sink.startRow();
+        sink.append(contentRowPrefix)
+                .append(line)
+                // a single cluster wider than the box overflows it rather than being cut
+                .append(contentRowPadding, Math.min(width, contentRowPaddingEnd),
+                        contentRowPaddingEnd)
+                .append(contentRowSuffix);
+    }
+
+    /** Draws a row holding given part of a line. Parts of styled lines (see AnsiStyle) are
+     *  preceded by the style active at their start and followed by a reset if a style is active
+     *  at their end, so the padding and border are never styled.
+     *  @param width display width of the part, see DisplayWidth
+     *  @param style SGR sequences active at the start of the part, updated to the ones active at
+     *  its end, or null if the line is not styled */
+    void drawContentLine(@NotNull BoxSink sink,
+                         @NotNull CharSequence line,
+                         int start,
+                         int end,
+                         int width,
+                         @Nullable StringBuilder style) throws IOException {
+        sink.startRow();
+        sink.append(contentRowPrefix);
+        if(style == null) sink.append(line, start, end);
+        else {
+            if(style.length() != 0) sink.append(style);
+            sink.append(line, start, end);
+            AnsiStyle.track(line, start, end, style);
+            if(style.length() != 0) sink.append(AnsiStyle.RESET);
+        }
+        sink.append(contentRowPadding, Math.min(width, contentRowPaddingEnd), contentRowPaddingEnd)
+                .append(contentRowSuffix);
+    }
+
+    /** Draws any line of content: an inner line for LineWithLevel and LineWithType, otherwise a
+     *  content row, or several rows if the line is wider than content width or contains line
+     *  breaks (see LineWrapper). Content is normalized first, if enabled. Long lines are split
+     *  by display width according to the configured WrapMode, never inside a cluster or an escape
+     *  sequence (see AnsiStyle). Given wrapper is used for rows of the long line, and given
+     *  style for the style of a styled line. */
+    void drawLine(@NotNull BoxSink sink,
+                  @NotNull CharSequence line,
+                  @NotNull LineWrapper wrapper,
+                  @NotNull StringBuilder style) throws IOException {
+        LineType lineType = null;
+        if(line instanceof LineWithType)
+            lineType = ((LineWithType) line).getLineType();
+        else if(line instanceof LineWithLevel)
+            lineType = configuration.getLineTypeForLevel(((LineWithLevel) line).getLineLevel());
+
+        if(lineType != null) {
+            drawInnerLine(sink, lineType);
+            return;
+        }
+
+        if(configuration.isNormalizeContent())
+            line = ContentNormalizer.normalize(line, configuration.getTabSize());
+        long measured = DisplayWidth.measure(line);
+        int width = DisplayWidth.widthOf(measured);
+        StringBuilder lineStyle = null;
+        if(DisplayWidth.hasEscapes(measured)) {
+            lineStyle = style;
+            lineStyle.setLength(0);
+        }
+
+        if(width <= contentWidth && !DisplayWidth.hasLineBreak(measured))
+            drawContentLine(sink, line, 0, line.length(), width, lineStyle);
+        else {
+            wrapper.wrap(line, contentWidth, configuration.getWrapMode());
+            int rows = wrapper.getCount();
+            for(int row = 0; row < rows; row++)
+                drawContentLine(sink, line, wrapper.getStart(row), wrapper.getEnd(row),
+                        wrapper.getWidth(row), lineStyle);
+        }
+    }
+
+    /** Draws a line that already fits into content width: an inner line for LineWithLevel and
+     *  LineWithType, otherwise a content row.
+     *  @param width display width of the line, see DisplayWidth */
+    void drawFittedLine(@NotNull BoxSink sink,
+                        @NotNull CharSequence line,
+                        int width) throws IOException {
+        LineType lineType = null;
+        if(line instanceof LineWithType)
+            lineType = ((LineWithType) line).getLineType();
+        else if(line instanceof LineWithLevel)
+            lineType = configuration.getLineTypeForLevel(((LineWithLevel) line).getLineLevel());
+
+        if(lineType != null) drawInnerLine(sink, lineType);
+        else drawContentLine(sink, line, width);
+    }
+
+    /** Draws an inner line (i.e. a separator) using the given LineType. */
+    void drawInnerLine(@NotNull BoxSink sink, @NotNull LineType lineType) throws IOException {
+        sink.startRow();
+        sink.append(getInnerLine(lineType));
+    }
+
+
+    // ------------------------------------------------------------------------------------ INTERNAL
+
+    @NotNull
+    private EncodedString getInnerLine(@NotNull LineType lineType) {
+        EncodedString innerLine = innerLines.get(lineType);
+        if(innerLine == null) {
+            innerLine = drawInnerLine(lineType);
+            if(innerLines.size() < MAX_EXTRA_INNER_LINES)
+                innerLines.putIfAbsent(lineType, innerLine);
+        }
+        return innerLine;
+    }
+
+    private static void appendRow(@NotNull StringBuilder stringBuilder, @NotNull String row) {
+        if(stringBuilder.length() != 0) stringBuilder.append(BoxSink.NEWLINE);
+        stringBuilder.append(row);
+    }
+
+    /** Draws a top or bottom outer line (i.e. top or bottom border). */
+    @NotNull
+    private String drawOuterLine(boolean top) {
+        LineType borderLineType = configuration.getBorderLineType();
+        StringBuilder stringBuilder = new StringBuilder();
+
+        CharRuns.append(stringBuilder, ' ', configuration.getMarginLeft());
+
+        if(configuration.hasBorderLeft())
+            stringBuilder.append(top?
+                    borderLineType.getTopLeftCorner() : borderLineType.getBottomLeftCorner());
+
+        CharRuns.append(stringBuilder, borderLineType.getHorizontalLine(), lineWidth);
+
+        if(configuration.hasBorderRight())
+            stringBuilder.append(top?
+                    borderLineType.getTopRightCorner() : borderLineType.getBottomRightCorner());
+
+        CharRuns.append(stringBuilder, ' ', configuration.getMarginRight());
+        return stringBuilder.toString();
+    }
+
+    @NotNull
+    private String drawPaddingRow() {
+        LineType borderLineType = configuration.getBorderLineType();
+        StringBuilder stringBuilder = new StringBuilder();
+
+        CharRuns.append(stringBuilder, ' ', configuration.getMarginLeft());
+
+        if(configuration.hasBorderLeft())
+            stringBuilder.append(borderLineType.getVerticalLine());
+
+        CharRuns.append(stringBuilder, ' ', lineWidth);
+
+        if(configuration.hasBorderRight())
+            stringBuilder.append(borderLineType.getVerticalLine());
+
+        CharRuns.append(stringBuilder, ' ', configuration.getMarginRight());
+        return stringBuilder.toString();
+    }
+
+    @NotNull
+    private EncodedString drawInnerLine(@NotNull LineType lineType) {
+        LineType borderLineType = configuration.getBorderLineType();
+        StringBuilder stringBuilder = new StringBuilder();
+
+        CharRuns.append(stringBuilder, ' ', configuration.getMarginLeft());
+
+        if(configuration.hasBorderLeft())
+            stringBuilder.append(borderLineType.getRightTIntersection());
+
+        CharRuns.append(stringBuilder, lineType.getHorizontalLine(), lineWidth);
+
+        if(configuration.hasBorderRight())
+            stringBuilder.append(borderLineType.getLeftTIntersection());
+
+        CharRuns.append(stringBuilder, ' ', configuration.getMarginRight());
+        return new EncodedString(stringBuilder.toString());
+    }
+
+}
@@ -0,0 +1,59 @@
+package com.bgpixel.prettyboxformatter;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Compiled BoxTemplates of a single resolved configuration. The template of the maximum width
+ *  has a slot of its own: it's built up front if wrapContent is false (as it's the only one that
+ *  will ever be used), otherwise on first use. Templates of other widths are built on demand and
+ *  kept in a small cache, so memory held never depends on how wide the box may get. */
+class BoxTemplates {
+
+    /** Max number of templates of widths other than the maximum one that are kept. Once reached,
+     *  the cache is cleared and starts filling up again. */
+    static final int MAX_CACHED_WIDTHS = 16;
+
+    @NotNull private final ResolvedBoxConfiguration configuration;
+
+    @Nullable private volatile BoxTemplate maxWidthTemplate;
+
+    /** Templates of other widths, by content width. */
+    @NotNull private final ConcurrentHashMap<Integer, BoxTemplate> templates =
+            new ConcurrentHashMap<>();
+
+    BoxTemplates(@NotNull ResolvedBoxConfiguration configuration) {
+        this.configuration = configuration;
+        if(!configuration.isWrapContent() && configuration.isValid())
+            maxWidthTemplate = new BoxTemplate(configuration, configuration.getMaxContentWidth());
+    }
+
+    /** Returns a template for a box of given content width, compiling it if needed. */
+    @NotNull
+    BoxTemplate forContentWidth(int contentWidth) {
+        if(contentWidth == configuration.getMaxContentWidth()) {
+            BoxTemplate template = maxWidthTemplate;
+            if(template == null) {
+                // If two threads compile the same template at the same time, both results are equal
+                template = new BoxTemplate(configuration, contentWidth);
+                maxWidthTemplate = template;
+            }
+            return template;
+        }
+
+        BoxTemplate template = templates.get(contentWidth);
+        if(template == null) {
+            template = new BoxTemplate(configuration, contentWidth);
+            if(templates.size() >= MAX_CACHED_WIDTHS) templates.clear();
+            templates.put(contentWidth, template);
+        }
+        return template;
+    }
+
+    /** Number of templates currently kept, including the one of the maximum width. */
+    int size() {
+        return templates.size() + (maxWidthTemplate == null? 0 : 1);
+    }
+
+}
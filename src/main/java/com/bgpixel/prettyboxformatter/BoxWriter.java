@@ -0,0 +1,180 @@
+package com.bgpixel.prettyboxformatter;
+
+import com.bgpixel.prettyboxformatter.line.LineWithLevel;
+import com.bgpixel.prettyboxformatter.line.LineWithType;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/** An "open" box, whose content is appended line by line while the box is being written. The top
+ *  of the box is written when the box is opened (see {@link PrettyBoxFormatter#openBox}) and the
+ *  bottom when it's closed. The box is always as wide as the configuration allows, since its
+ *  content is not known in advance (i.e. wrapContent is ignored).<br/>
+ *  Lines can be appended from any number of threads. Each line is rendered by the appending
+ *  thread and queued. Whichever thread manages to take the write lock without waiting writes all
+ *  queued rows to the target in a single batch (and flushes it, if Flushable), so producers never
+ *  wait for each other. Lines appended by a single thread keep their order.<br/>
+ *  The target is only written to while holding the write lock, so it doesn't have to be
+ *  thread-safe, but it must not be written to by anyone else while the box is open. */
+public final class BoxWriter implements Closeable, Flushable {
+
+    /** Close waiting for producers parks for up to this long between checks. */
+    private static final long MAX_CLOSE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @NotNull private final Appendable target;
+    @NotNull private final BoxTemplate template;
+    @NotNull private List<CharSequence> footerLines = Collections.emptyList();
+
+    /** Rendered rows (one or more rows per appended line), waiting to be written. */
+    @NotNull private final ConcurrentLinkedQueue<String> pendingRows =
+            new ConcurrentLinkedQueue<>();
+    @NotNull private final ReentrantLock writeLock = new ReentrantLock();
+
+    /** Number of threads currently appending. Close waits for them, so no line gets lost. */
+    @NotNull private final AtomicInteger activeProducers = new AtomicInteger();
+    private volatile boolean closed = false;
+    /** Thread waiting in close for producers; the last one to finish unparks it. */
+    @Nullable private volatile Thread closingThread;
+    /** True once the end of the box was queued. Guarded by write lock. */
+    private boolean finished;
+
+    /** True once anything was written, i.e. the next row must be preceded by a newline. Guarded by
+     *  write lock. */
+    private boolean rowWritten;
+
+    BoxWriter(@NotNull Appendable target, @NotNull BoxTemplate template) {
+        this.target = target;
+        this.template = template;
+    }
+
+    /** Writes the start of the box. Must be called once, before the writer is given to client.
+     *  @param start already rendered start of the box (warnings, top rows and header lines)
+     *  @param footerLines footer content lines, drawn before the bottom of the box */
+    void open(@NotNull String start, @NotNull List<CharSequence> footerLines) throws IOException {
+        this.footerLines = footerLines;
+        target.append(start);
+        rowWritten = start.length() != 0;
+        if(target instanceof Flushable) ((Flushable) target).flush();
+    }
+
+    /** Appends a line of content. Lines longer than the box are split into several rows, just
+     *  like with {@link PrettyBoxFormatter#format(List)}. LineWithLevel and LineWithType instances
+     *  are drawn as inner lines.
+     *  @throws IllegalStateException if the box has already been closed
+     *  @throws IOException if the target throws while this thread writes queued rows */
+    public void appendLine(@NotNull CharSequence line) throws IOException {
+        activeProducers.incrementAndGet();
+        try {
+            if(closed) throw new IllegalStateException("Box has already been closed");
+            pendingRows.add(render(line));
+        } finally {
+            if(activeProducers.decrementAndGet() == 0 && closed) {
+                Thread closingThread = this.closingThread;
+                if(closingThread != null) LockSupport.unpark(closingThread);
+            }
+        }
+
+        writePendingRows(false);
+    }
+
+    /** Appends an inner line of the given level. See {@link #appendLine(CharSequence)}. */
+    public void appendSeparator(@NotNull LineWithLevel separator) throws IOException {
+        appendLine(separator);
+    }
+
+    /** Appends an inner line of the given LineType. See {@link #appendLine(CharSequence)}. */
+    public void appendSeparator(@NotNull LineWithType separator) throws IOException {
+        appendLine(separator);
+    }
+
+    /** Writes all lines appended so far (waiting for other threads to finish writing, if needed)
+     *  and flushes the target, if Flushable. */
+    @Override
+    public void flush() throws IOException {
+        writePendingRows(true);
+    }
+
+    /** Waits for lines being appended, writes them, followed by footer lines and the bottom of the
+     *  box. Lines appended after this call fail with IllegalStateException. Closing an already
+     *  closed box does nothing. The target is not closed. */
+    @Override
+    public void close() throws IOException {
+        // Producers are waited for before taking the write lock, which they may need to finish
+        closingThread = Thread.currentThread();
+        closed = true;
+        while(activeProducers.get() != 0) LockSupport.parkNanos(this, MAX_CLOSE_PARK_NANOS);
+
+        writeLock.lock();
+        try {
+            if(finished) return;
+            finished = true;
+
+            RenderContext context = RenderContext.acquire();
+            try {
+                StringBuilder end = context.rows;
+                AppendableBoxSink sink = context.appendableSink(end);
+                for(CharSequence line : footerLines)
+                    template.drawLine(sink, line, context.lineWrapper, context.style);
+                template.drawFooter(sink);
+                if(end.length() != 0) pendingRows.add(end.toString());
+            } finally {
+                context.release();
+            }
+
+            writePendingRows(true);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public boolean isClosed() { return closed; }
+
+    /** Renders the rows of given line using the current thread's render context. */
+    @NotNull
+    private String render(@NotNull CharSequence line) throws IOException {
+        RenderContext context = RenderContext.acquire();
+        try {
+            StringBuilder rows = context.rows;
+            template.drawLine(context.appendableSink(rows), line, context.lineWrapper,
+                    context.style);
+            return rows.toString();
+        } finally {
+            context.release();
+        }
+    }
+
+    /** Writes queued rows in a batch. If wait is false and another thread is already writing,
+     *  returns at once: that thread re-checks the queue after releasing the lock, so rows queued in
+     *  the meantime are never stranded. */
+    private void writePendingRows(boolean wait) throws IOException {
+        do {
+            if(wait) writeLock.lock();
+            else if(!writeLock.tryLock()) return;
+
+            try {
+                boolean written = false;
+                String row;
+                while((row = pendingRows.poll()) != null) {
+                    if(rowWritten) target.append(BoxSink.NEWLINE);
+                    target.append(row);
+                    rowWritten = true;
+                    written = true;
+                }
+                if(target instanceof Flushable && (written || wait)) ((Flushable) target).flush();
+            } finally {
+                writeLock.unlock();
+            }
+        } while(!pendingRows.isEmpty());
+    }
+
+}
@@ -0,0 +1,96 @@
+package com.bgpixel.prettyboxformatter;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.CharBuffer;
+
+/** BoxSink that writes into a char array allocated up front. Used when the exact size of the box
+ *  is known before drawing, so the output never has to be resized or copied while drawing. */
+class CharArrayBoxSink extends BoxSink {
+
+    @NotNull private char[] chars;
+    private int position;
+
+    CharArrayBoxSink(@NotNull char[] chars) {
+        this.chars = chars;
+    }
+
+    /** Makes the sink draw a new box into given array. */
+    void reset(@NotNull char[] chars) {
+        reset(chars, 0, false);
+    }
+
+    /** Makes the sink draw into given array, starting at given position. See
+     *  {@link #resetRows(boolean)}. */
+    void reset(@NotNull char[] chars, int position, boolean rowStarted) {
+        this.chars = chars;
+        this.position = position;
+        resetRows(rowStarted);
+    }
+
+    @NotNull char[] getChars() { return chars; }
+
+    /** Number of chars written so far. */
+    int getPosition() { return position; }
+
+    @Override
+    void appendNewline() {
+        append(NEWLINE, 0, NEWLINE.length());
+    }
+
+    @NotNull @Override
+    BoxSink append(@NotNull EncodedString encodedString) {
+        String text = encodedString.getText();
+        text.getChars(0, text.length(), chars, position);
+        position += text.length();
+        return this;
+    }
+
+    @NotNull @Override
+    BoxSink append(@NotNull EncodedString encodedString, int start, int end) {
+        encodedString.getText().getChars(start, end, chars, position);
+        position += end - start;
+        return this;
+    }
+
+    @NotNull @Override
+    BoxSink append(@NotNull CharSequence charSequence) {
+        return append(charSequence, 0, charSequence.length());
+    }
+
+    @NotNull @Override
+    BoxSink append(@NotNull CharSequence charSequence, int start, int end) {
+        getChars(charSequence, start, end, chars, position);
+        position += end - start;
+        return this;
+    }
+
+    /** Copies given chars into the array. Slices are copied straight from their source line, and
+     *  Strings, StringBuilders and array-backed CharBuffers in bulk. Other CharSequences are
+     *  copied char by char. */
+    static void getChars(@NotNull CharSequence charSequence,
+                         int start,
+                         int end,
+                         @NotNull char[] chars,
+                         int position) {
+        if(charSequence instanceof LineSlice) {
+            LineSlice slice = (LineSlice) charSequence;
+            charSequence = slice.getSource();
+            start += slice.getStart();
+            end += slice.getStart();
+        }
+
+        if(charSequence instanceof String) {
+            ((String) charSequence).getChars(start, end, chars, position);
+        } else if(charSequence instanceof StringBuilder) {
+            ((StringBuilder) charSequence).getChars(start, end, chars, position);
+        } else if(charSequence instanceof CharBuffer && ((CharBuffer) charSequence).hasArray()) {
+            CharBuffer buffer = (CharBuffer) charSequence;
+            System.arraycopy(buffer.array(), buffer.arrayOffset() + buffer.position() + start,
+                    chars, position, end - start);
+        } else {
+            for(int i = start, j = position; i < end; i++, j++) chars[j] = charSequence.charAt(i);
+        }
+    }
+
+}
@@ -0,0 +1,58 @@
+package com.bgpixel.prettyboxformatter;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Shared cache of pre-built runs of a single character (spaces and horizontal lines of
+ *  LineTypes). A run of the required length is appended by slicing a cached run, instead of
+ *  building a new String every time.<br/>
+ *  The cache is bounded: runs grow to the longest length requested so far, but only up to
+ *  {@link #MAX_CACHED_LENGTH}, and only {@link #MAX_CACHED_CHARACTERS} different characters are
+ *  cached. Longer runs and runs of other characters are built on demand. */
+final class CharRuns {
+
+    static final int MAX_CACHED_LENGTH = 4096;
+    static final int MAX_CACHED_CHARACTERS = 32;
+
+    /** Shortest run that gets cached. Avoids rebuilding a run for every slightly longer request. */
+    private static final int MIN_CACHED_LENGTH = 128;
+
+    @NotNull private static final ConcurrentHashMap<Character, EncodedString> RUNS =
+            new ConcurrentHashMap<>();
+
+    private CharRuns() {}
+
+    /** Returns a run consisting only of the given character, at least minLength long. */
+    @NotNull
+    static EncodedString get(char character, int minLength) {
+        EncodedString run = RUNS.get(character);
+        if(run != null && run.length() >= minLength) return run;
+
+        if(minLength > MAX_CACHED_LENGTH || (run == null && RUNS.size() >= MAX_CACHED_CHARACTERS))
+            return build(character, minLength);
+
+        int length = Math.max(minLength, MIN_CACHED_LENGTH);
+        if(run != null) length = Math.min(Math.max(length, run.length() * 2), MAX_CACHED_LENGTH);
+
+        // If two threads grow the same run at the same time, both results are usable
+        run = build(character, length);
+        RUNS.put(character, run);
+        return run;
+    }
+
+    /** Appends a run of given character and length to the StringBuilder. */
+    static void append(@NotNull StringBuilder stringBuilder, char character, int length) {
+        if(length <= 0) return;
+        stringBuilder.append(get(character, length).getText(), 0, length);
+    }
+
+    @NotNull
+    private static EncodedString build(char character, int length) {
+        char[] chars = new char[length];
+        Arrays.fill(chars, character);
+        return new EncodedString(new String(chars));
+    }
+
+}
@@ -0,0 +1,37 @@
+package com.bgpixel.prettyboxformatter;
+
+import org.jetbrains.annotations.NotNull;
+
+/** Immutable snapshot of a resolved (merged and validated) configuration together with all values
+ *  derived from it. PrettyBoxFormatter publishes its instance-level snapshot with a single volatile
+ *  write, so a formatting thread can never see a configuration mixed with widths or templates
+ *  derived from some other configuration. */
+final class ConfigurationSnapshot {
+
+    /** Merged configuration, as returned to client. */
+    @NotNull private final PrettyBoxConfiguration configuration;
+
+    /** Form of the merged configuration used while drawing. */
+    @NotNull private final ResolvedBoxConfiguration resolved;
+
+    /** True if client attempted to set an invalid configuration, and this snapshot holds the
+     *  fallback configuration instead. */
+    private final boolean invalid;
+
+    @NotNull private final BoxTemplates templates;
+
+    ConfigurationSnapshot(@NotNull PrettyBoxConfiguration configuration,
+                          @NotNull ResolvedBoxConfiguration resolved,
+                          boolean invalid) {
+        this.configuration = configuration;
+        this.resolved = resolved;
+        this.invalid = invalid;
+        this.templates = new BoxTemplates(resolved);
+    }
+
+    @NotNull PrettyBoxConfiguration getConfiguration() { return configuration; }
+    @NotNull ResolvedBoxConfiguration getResolved() { return resolved; }
+    boolean isInvalid() { return invalid; }
+    @NotNull BoxTemplates getTemplates() { return templates; }
+
+}
@@ -0,0 +1,83 @@
+package com.bgpixel.prettyboxformatter;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.AbstractList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+
+/** Read-only view of box content made of header lines, body lines (as given by the client) and
+ *  footer lines. Nothing is copied when the view is set up and the client's list is never
+ *  modified, so header and footer can be added regardless of body size or mutability. */
+class ContentLines extends AbstractList<CharSequence> {
+
+    @NotNull private List<? extends CharSequence> header = Collections.emptyList();
+    @NotNull private List<? extends CharSequence> body = Collections.emptyList();
+    @NotNull private List<? extends CharSequence> footer = Collections.emptyList();
+
+    /** Makes this view show given lists. Instances are reused by RenderContext. */
+    @NotNull
+    ContentLines set(@NotNull List<? extends CharSequence> header,
+                     @NotNull List<? extends CharSequence> body,
+                     @NotNull List<? extends CharSequence> footer) {
+        this.header = header;
+        this.body = body;
+        this.footer = footer;
+        return this;
+    }
+
+    /** Drops references to all lists. */
+    @Override
+    public void clear() {
+        set(Collections.<CharSequence>emptyList(), Collections.<CharSequence>emptyList(),
+                Collections.<CharSequence>emptyList());
+    }
+
+    /** True if the body supports fast random access (header and footer always do). */
+    boolean isRandomAccess() { return body instanceof RandomAccess; }
+
+    @Override
+    public int size() {
+        return header.size() + body.size() + footer.size();
+    }
+
+    @Override
+    public CharSequence get(int index) {
+        if(index < 0) throw new IndexOutOfBoundsException("Index: " + index);
+        if(index < header.size()) return header.get(index);
+        index -= header.size();
+        if(index < body.size()) return body.get(index);
+        return footer.get(index - body.size());
+    }
+
+    /** Iterates over each part using its own iterator, so bodies without fast random access
+     *  (e.g. LinkedList) are still traversed in linear time. */
+    @NotNull
+    @Override
+    public Iterator<CharSequence> iterator() {
+        return new Iterator<CharSequence>() {
+            @NotNull private Iterator<? extends CharSequence> current = header.iterator();
+            private int part = 0;
+
+            @Override
+            public boolean hasNext() {
+                while(!current.hasNext()) {
+                    if(part == 2) return false;
+                    part++;
+                    current = part == 1? body.iterator() : footer.iterator();
+                }
+                return true;
+            }
+
+            @Override
+            public CharSequence next() {
+                if(!hasNext()) throw new NoSuchElementException();
+                return current.next();
+            }
+        };
+    }
+
+}
@@ -0,0 +1,107 @@
+package com.bgpixel.prettyboxformatter;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/** Cleans up content lines when normalization is enabled (see
+ *  {@link PrettyBoxConfiguration.Builder#setNormalizeContent(Boolean)}): tabs are expanded to
+ *  spaces up to the next tab stop, carriage returns (including the CR of CR LF) are removed, and
+ *  other C0 control characters and DEL are replaced by their Unicode control pictures (e.g. NUL by
+ *  U+2400), C1 control characters by a \x escape. Line breaks are kept, as they start new rows,
+ *  and so are ANSI escape sequences (see AnsiStyle).<br/>
+ *  A single scan without allocation proves a line clean, in which case the line itself is used.
+ *  Only lines with something to rewrite are copied. Widths can be computed without copying. */
+final class ContentNormalizer {
+
+    private static final char CONTROL_PICTURES = '\u2400';
+    private static final char DELETE_PICTURE = '\u2421';
+    private static final char DELETE = '\u007F';
+    private static final char LAST_C1 = '\u009F';
+    @NotNull private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private ContentNormalizer() {}
+
+    /** Returns given line normalized, or the line itself if there is nothing to rewrite. */
+    @NotNull
+    static CharSequence normalize(@NotNull CharSequence line, int tabSize) {
+        if(isClean(line)) return line;
+        StringBuilder normalized = new StringBuilder(line.length() + 2 * tabSize);
+        scan(line, tabSize, normalized);
+        return normalized.toString();
+    }
+
+    /** Returns the display width (see DisplayWidth) given line will have once normalized. */
+    static int widthOf(@NotNull CharSequence line, int tabSize) {
+        if(isClean(line)) return DisplayWidth.of(line);
+        return scan(line, tabSize, null);
+    }
+
+    /** True if there is nothing to rewrite in given line. */
+    static boolean isClean(@NotNull CharSequence line) {
+        for(int i = 0; i < line.length(); i++)
+            if(needsRewrite(line.charAt(i))) return false;
+        return true;
+    }
+
+
+    // ------------------------------------------------------------------------------------ INTERNAL
+
+    private static boolean needsRewrite(char c) {
+        if(c < 0x20) return c != '\n' && c != AnsiStyle.ESCAPE;
+        return c >= DELETE && c <= LAST_C1;
+    }
+
+    /** Walks the line as it will be once normalized, appending it to given StringBuilder (if
+     *  any). Unchanged parts are appended in bulk. Returns the width of its widest row. */
+    private static int scan(@NotNull CharSequence line,
+                            int tabSize,
+                            @Nullable StringBuilder normalized) {
+        int length = line.length();
+        int maxWidth = 0;
+        int column = 0;
+        int unchangedStart = 0;
+        int i = 0;
+        while(i < length) {
+            char c = line.charAt(i);
+            if(c == '\n') {
+                maxWidth = Math.max(maxWidth, column);
+                column = 0;
+                i++;
+                continue;
+            }
+            if(c == AnsiStyle.ESCAPE) {
+                i = AnsiStyle.escapeEnd(line, i, length);
+                continue;
+            }
+            if(!needsRewrite(c)) {
+                long cluster = DisplayWidth.cluster(line, i, length);
+                column += DisplayWidth.widthOf(cluster);
+                i = DisplayWidth.endOf(cluster);
+                continue;
+            }
+
+            if(normalized != null) normalized.append(line, unchangedStart, i);
+            if(c == '\t') {
+                int spaces = tabSize - column % tabSize;
+                if(normalized != null) for(int s = 0; s < spaces; s++) normalized.append(' ');
+                column += spaces;
+            } else if(c < 0x20 && c != '\r') {
+                if(normalized != null) normalized.append((char) (CONTROL_PICTURES + c));
+                column++;
+            } else if(c == DELETE) {
+                if(normalized != null) normalized.append(DELETE_PICTURE);
+                column++;
+            } else if(c != '\r') {
+                if(normalized != null)
+                    normalized.append('\\').append('x')
+                            .append(HEX_DIGITS[c >> 4]).append(HEX_DIGITS[c & 0xF]);
+                column += 4;
+            }
+            i++;
+            unchangedStart = i;
+        }
+        if(normalized != null) normalized.append(line, unchangedStart, length);
+        return Math.max(maxWidth, column);
+    }
+
+}
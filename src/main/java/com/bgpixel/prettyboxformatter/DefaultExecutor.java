@@ -0,0 +1,36 @@
+package com.bgpixel.prettyboxformatter;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+
+/** Executor used by async formatting methods when the client doesn't supply one: a virtual
+ *  thread per task on Java 21+, the common ForkJoinPool on older versions. Virtual threads are
+ *  looked up reflectively, so the library still builds and runs on Java 8. */
+final class DefaultExecutor {
+
+    private DefaultExecutor() {}
+
+    @NotNull
+    static Executor get() { return Holder.EXECUTOR; }
+
+    /** Initialized on first use only. */
+    private static final class Holder {
+        @NotNull static final Executor EXECUTOR = create();
+    }
+
+    @NotNull
+    private static Executor create() {
+        try {
+            return (Executor) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor")
+                    .invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Java 20 or older (or virtual threads not available)
+            return ForkJoinPool.commonPool();
+        }
+    }
+
+}
@@ -0,0 +1,239 @@
+package com.bgpixel.prettyboxformatter;
+
+import org.jetbrains.annotations.NotNull;
+
+/** Number of terminal columns text takes up, as opposed to its length in UTF-16 chars. East
+ *  Asian wide and fullwidth characters (CJK, most emoji) take two columns, combining marks and
+ *  other zero-width characters none, everything else one.<br/>
+ *  Text is measured by grapheme clusters (approximated): a character together with combining
+ *  marks, variation selectors and emoji modifiers following it, emoji joined by ZWJ, and pairs of
+ *  regional indicators (flags). A cluster takes as many columns as its first character (two for
+ *  a flag) and is never split. ANSI escape sequences (see AnsiStyle) take up no columns and are
+ *  never split either. Line breaks separate rows (see LineWrapper), so text containing them is
+ *  as wide as its widest row.<br/>
+ *  Control chars (C0, DEL and C1) print nothing, so they take up no columns either.<br/>
+ *  Plain text (printable Latin-1: every char between U+0020 and U+00FF, except DEL and C1) is
+ *  confirmed in a single scan and measured as its length, so the common case costs no more than
+ *  before. */
+final class DisplayWidth {
+
+    private static final int ZERO_WIDTH_JOINER = 0x200D;
+    private static final int REGIONAL_INDICATOR_FIRST = 0x1F1E6;
+    private static final int REGIONAL_INDICATOR_LAST = 0x1F1FF;
+    private static final int EMOJI_MODIFIER_FIRST = 0x1F3FB;
+    private static final int EMOJI_MODIFIER_LAST = 0x1F3FF;
+
+    /** Set in the result of measure if text contains a line break. */
+    private static final long LINE_BREAK = 1L << 32;
+    /** Set in the result of measure if text contains an escape sequence. */
+    private static final long ESCAPES = 1L << 33;
+
+    /** Inclusive ranges of East Asian Wide (W) and Fullwidth (F) code points, sorted. */
+    @NotNull private static final int[] WIDE_RANGES = {
+            0x1100, 0x115F, 0x231A, 0x231B, 0x2329, 0x232A, 0x23E9, 0x23EC, 0x23F0, 0x23F0,
+            0x23F3, 0x23F3, 0x25FD, 0x25FE, 0x2614, 0x2615, 0x2648, 0x2653, 0x267F, 0x267F,
+            0x2693, 0x2693, 0x26A1, 0x26A1, 0x26AA, 0x26AB, 0x26BD, 0x26BE, 0x26C4, 0x26C5,
+            0x26CE, 0x26CE, 0x26D4, 0x26D4, 0x26EA, 0x26EA, 0x26F2, 0x26F3, 0x26F5, 0x26F5,
+            0x26FA, 0x26FA, 0x26FD, 0x26FD, 0x2705, 0x2705, 0x270A, 0x270B, 0x2728, 0x2728,
+            0x274C, 0x274C, 0x274E, 0x274E, 0x2753, 0x2755, 0x2757, 0x2757, 0x2795, 0x2797,
+            0x27B0, 0x27B0, 0x27BF, 0x27BF, 0x2B1B, 0x2B1C, 0x2B50, 0x2B50, 0x2B55, 0x2B55,
+            0x2E80, 0x303E, 0x3041, 0x33FF, 0x3400, 0x4DBF, 0x4E00, 0x9FFF, 0xA000, 0xA4CF,
+            0xA960, 0xA97F, 0xAC00, 0xD7A3, 0xF900, 0xFAFF, 0xFE10, 0xFE19, 0xFE30, 0xFE6F,
+            0xFF00, 0xFF60, 0xFFE0, 0xFFE6, 0x16FE0, 0x16FE4, 0x17000, 0x18AFF, 0x1B000, 0x1B2FF,
+            0x1F004, 0x1F004, 0x1F0CF, 0x1F0CF, 0x1F18E, 0x1F18E, 0x1F191, 0x1F19A,
+            0x1F200, 0x1F202, 0x1F210, 0x1F23B, 0x1F240, 0x1F248, 0x1F250, 0x1F251,
+            0x1F260, 0x1F265, 0x1F300, 0x1F320, 0x1F32D, 0x1F335, 0x1F337, 0x1F37C,
+            0x1F37E, 0x1F393, 0x1F3A0, 0x1F3CA, 0x1F3CF, 0x1F3D3, 0x1F3E0, 0x1F3F0,
+            0x1F3F4, 0x1F3F4, 0x1F3F8, 0x1F43E, 0x1F440, 0x1F440, 0x1F442, 0x1F4FC,
+            0x1F4FF, 0x1F53D, 0x1F54B, 0x1F54E, 0x1F550, 0x1F567, 0x1F57A, 0x1F57A,
+            0x1F595, 0x1F596, 0x1F5A4, 0x1F5A4, 0x1F5FB, 0x1F64F, 0x1F680, 0x1F6C5,
+            0x1F6CC, 0x1F6CC, 0x1F6D0, 0x1F6D2, 0x1F6D5, 0x1F6D7, 0x1F6EB, 0x1F6EC,
+            0x1F6F4, 0x1F6FC, 0x1F7E0, 0x1F7EB, 0x1F90C, 0x1F93A, 0x1F93C, 0x1F945,
+            0x1F947, 0x1F9FF, 0x1FA70, 0x1FAFF, 0x20000, 0x2FFFD, 0x30000, 0x3FFFD
+    };
+
+    private DisplayWidth() {}
+
+    /** True if all chars of given text are printable Latin-1, i.e. its width equals its length.
+     *  Control chars (C0 including the escape char, DEL and C1) are excluded. */
+    static boolean isPlain(@NotNull CharSequence text) {
+        // no branch per char: any char at or above U+0100 leaves a bit set above the low byte,
+        // and any char below U+0020 or between U+007F and U+009F sets the sign bit
+        int high = 0;
+        int low = 0;
+        for(int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            high |= c;
+            low |= (c - 0x20) | ~((c - 0x7F) | (0x9F - c));
+        }
+        return high < 0x100 && low >= 0;
+    }
+
+    /** Returns the number of columns given text takes up. For text with line breaks (see
+     *  LineWrapper), the number of columns its widest row takes up. */
+    static int of(@NotNull CharSequence text) {
+        return (int) measure(text);
+    }
+
+    /** Same as {@link #of(CharSequence)}, but also tells if text contains a line break or an
+     *  escape sequence, see {@link #hasLineBreak(long)} and {@link #hasEscapes(long)}. */
+    static long measure(@NotNull CharSequence text) {
+        if(isPlain(text)) return text.length();
+
+        int length = text.length();
+        int maxWidth = 0;
+        int width = 0;
+        long flags = 0;
+        int i = 0;
+        while(i < length) {
+            int breakLength = LineWrapper.lineBreakLength(text, i);
+            if(breakLength != 0) {
+                maxWidth = Math.max(maxWidth, width);
+                width = 0;
+                flags |= LINE_BREAK;
+                i += breakLength;
+                continue;
+            }
+            if(text.charAt(i) == AnsiStyle.ESCAPE) flags |= ESCAPES;
+
+            int clusterEnd = clusterEnd(text, i, length);
+            width += clusterWidth(text, i);
+            i = clusterEnd;
+        }
+        return Math.max(maxWidth, width) | flags;
+    }
+
+    /** True if text measured by {@link #measure} contains a line break. */
+    static boolean hasLineBreak(long measured) { return (measured & LINE_BREAK) != 0; }
+
+    /** True if text measured by {@link #measure} contains an escape sequence. */
+    static boolean hasEscapes(long measured) { return (measured & ESCAPES) != 0; }
+
+    /** Finds the longest part of text, starting at given index and ending at most at given end,
+     *  that fits into given number of columns, without splitting a cluster. At least one cluster
+     *  is always taken, even if it doesn't fit. Escape sequences right after the last column are
+     *  taken as well. Returns both the end of the part and its width, see {@link #endOf(long)}
+     *  and {@link #widthOf(long)}. */
+    static long fit(@NotNull CharSequence text, int start, int end, int maxWidth) {
+        int width = 0;
+        int i = start;
+        while(i < end) {
+            long cluster = cluster(text, i, end);
+            int clusterWidth = widthOf(cluster);
+            if(width + clusterWidth > maxWidth && i != start) break;
+            width += clusterWidth;
+            i = endOf(cluster);
+            if(width >= maxWidth) {
+                while(i < end && text.charAt(i) == AnsiStyle.ESCAPE)
+                    i = AnsiStyle.escapeEnd(text, i, end);
+                break;
+            }
+        }
+        return ((long) i << 32) | width;
+    }
+
+    /** Returns both the end and the width of the cluster (or escape sequence) starting at given
+     *  index and ending at most at given end, see {@link #endOf(long)} and
+     *  {@link #widthOf(long)}. */
+    static long cluster(@NotNull CharSequence text, int index, int end) {
+        char c = text.charAt(index);
+        if((c >= 0x20 && c < 0x7F || c >= 0xA0 && c < 0x300)
+                && (index + 1 == end || text.charAt(index + 1) < 0x300)) {
+            // a single char, not followed by anything that could join it
+            return ((long) (index + 1) << 32) | 1;
+        }
+        return ((long) clusterEnd(text, index, end) << 32) | clusterWidth(text, index);
+    }
+
+    /** End index of a part found by {@link #fit} or a {@link #cluster}. */
+    static int endOf(long fit) { return (int) (fit >>> 32); }
+
+    /** Width of a part found by {@link #fit} or a {@link #cluster}. */
+    static int widthOf(long fit) { return (int) fit; }
+
+    /** Returns the number of columns a single code point takes up on its own. */
+    static int codePointWidth(int codePoint) {
+        if(codePoint < 0x300) return isControl(codePoint)? 0 : 1;
+        if(isZeroWidth(codePoint)) return 0;
+        return isWide(codePoint)? 2 : 1;
+    }
+
+
+    // ------------------------------------------------------------------------------------ INTERNAL
+
+    /** Returns the end of the cluster (or escape sequence) starting at given index. */
+    private static int clusterEnd(@NotNull CharSequence text, int start, int end) {
+        if(text.charAt(start) == AnsiStyle.ESCAPE) return AnsiStyle.escapeEnd(text, start, end);
+
+        int first = Character.codePointAt(text, start);
+        int i = start + Character.charCount(first);
+
+        if(isRegionalIndicator(first) && i < end) {
+            int second = Character.codePointAt(text, i);
+            if(isRegionalIndicator(second)) i += Character.charCount(second);
+        }
+
+        while(i < end) {
+            int codePoint = Character.codePointAt(text, i);
+            if(codePoint == ZERO_WIDTH_JOINER) {
+                i += Character.charCount(codePoint);
+                // the joined character belongs to this cluster as well
+                if(i < end) i += Character.charCount(Character.codePointAt(text, i));
+            } else if(isZeroWidth(codePoint) || isEmojiModifier(codePoint)) {
+                i += Character.charCount(codePoint);
+            } else {
+                break;
+            }
+        }
+        return i;
+    }
+
+    /** Width of the cluster starting at given index, i.e. the width of its first code point. */
+    private static int clusterWidth(@NotNull CharSequence text, int start) {
+        if(text.charAt(start) == AnsiStyle.ESCAPE) return 0;
+        int first = Character.codePointAt(text, start);
+        if(isRegionalIndicator(first)) return 2;
+        return codePointWidth(first);
+    }
+
+    /** C0 and C1 control chars and DEL, which print nothing (see ContentNormalizer for making
+     *  them visible). */
+    private static boolean isControl(int codePoint) {
+        return codePoint < 0x20 || codePoint >= 0x7F && codePoint <= 0x9F;
+    }
+
+    private static boolean isZeroWidth(int codePoint) {
+        if(codePoint == 0x200B) return true; // zero width space
+        if(codePoint >= 0x1160 && codePoint <= 0x11FF) return true; // Hangul medial vowels
+        switch (Character.getType(codePoint)) {
+            case Character.NON_SPACING_MARK:
+            case Character.ENCLOSING_MARK:
+            case Character.FORMAT:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean isWide(int codePoint) {
+        if(codePoint < WIDE_RANGES[0]) return false;
+        int low = 0;
+        int high = WIDE_RANGES.length / 2 - 1;
+        while(low <= high) {
+            int middle = (low + high) >>> 1;
+            if(codePoint < WIDE_RANGES[middle * 2]) high = middle - 1;
+            else if(codePoint > WIDE_RANGES[middle * 2 + 1]) low = middle + 1;
+            else return true;
+        }
+        return false;
+    }
+
+    private static boolean isRegionalIndicator(int codePoint) {
+        return codePoint >= REGIONAL_INDICATOR_FIRST && codePoint <= REGIONAL_INDICATOR_LAST;
+    }
+
+    private static boolean isEmojiModifier(int codePoint) {
+        return codePoint >= EMOJI_MODIFIER_FIRST && codePoint <= EMOJI_MODIFIER_LAST;
+    }
+
+}
@@ -0,0 +1,48 @@
+package com.bgpixel.prettyboxformatter;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.charset.StandardCharsets;
+
+/** A String together with its UTF-8 representation. Used for pieces of box templates, so that
+ *  box-drawing characters are encoded only once and not with every printout. */
+final class EncodedString {
+
+    @NotNull private final String text;
+    @NotNull private final byte[] utf8;
+
+    /** Number of bytes used to encode each char, if it is the same for all chars (e.g. a run of
+     *  spaces or box-drawing characters). Zero otherwise. */
+    private final int bytesPerChar;
+
+    EncodedString(@NotNull String text) {
+        this.text = text;
+        this.utf8 = text.getBytes(StandardCharsets.UTF_8);
+        this.bytesPerChar = determineBytesPerChar(text, utf8.length);
+    }
+
+    @NotNull String getText() { return text; }
+    @NotNull byte[] getUtf8() { return utf8; }
+
+    /** If positive, char offsets can be converted to byte offsets by multiplying. */
+    int getBytesPerChar() { return bytesPerChar; }
+
+    int length() { return text.length(); }
+
+    @NotNull @Override public String toString() { return text; }
+
+    private static int determineBytesPerChar(@NotNull String text, int byteLength) {
+        if(text.length() == 0) return 0;
+        if(byteLength == text.length()) return 1;
+        if(byteLength % text.length() != 0) return 0;
+
+        int bytesPerChar = byteLength / text.length();
+        for(int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if(Character.isSurrogate(c)) return 0;
+            if((c < 0x80? 1 : c < 0x800? 2 : 3) != bytesPerChar) return 0;
+        }
+        return bytesPerChar;
+    }
+
+}
@@ -1,30 +1,70 @@
 package com.bgpixel.prettyboxformatter;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 class FormattingTaskData {
 
-    @NotNull private List<CharSequence> contentLines = new ArrayList<>();
+    @NotNull private List<CharSequence> contentLines = Collections.emptyList();
+    /** Display width of each content line, or null if every line is as wide as it is long. */
+    @Nullable private int[] contentLineWidths;
     private int contentWidth;
     private int lineWidth;
 
+    /** Configuration and template used to draw the box. Set once content is prepared. */
+    private ResolvedBoxConfiguration configuration;
+    private BoxTemplate template;
+
     private boolean printInvalidInstanceLevelConfigMessage = false;
     private boolean printInvalidPerCallConfigMessage = false;
 
+    /** Clears all values, so the instance can be reused for another box. */
+    void reset() {
+        contentLines = Collections.emptyList();
+        contentLineWidths = null;
+        contentWidth = 0;
+        lineWidth = 0;
+        configuration = null;
+        template = null;
+        printInvalidInstanceLevelConfigMessage = false;
+        printInvalidPerCallConfigMessage = false;
+    }
+
+    /** Copies the configuration and warning flags of another task (e.g. one resolved once for a
+     *  batch of boxes). */
+    void copyConfiguration(@NotNull FormattingTaskData other) {
+        configuration = other.configuration;
+        printInvalidInstanceLevelConfigMessage = other.printInvalidInstanceLevelConfigMessage;
+        printInvalidPerCallConfigMessage = other.printInvalidPerCallConfigMessage;
+    }
+
     @NotNull List<CharSequence> getContentLines() { return contentLines; }
     void setContentLines(@NotNull List<CharSequence> contentLines) {
         this.contentLines = contentLines;
     }
 
+    @Nullable int[] getContentLineWidths() { return contentLineWidths; }
+    void setContentLineWidths(@Nullable int[] contentLineWidths) {
+        this.contentLineWidths = contentLineWidths;
+    }
+
     int getContentWidth() { return contentWidth; }
     void setContentWidth(int contentWidth) { this.contentWidth = contentWidth; }
 
     int getLineWidth() { return lineWidth; }
     void setLineWidth(int lineWidth) { this.lineWidth = lineWidth; }
 
+    @NotNull ResolvedBoxConfiguration getConfiguration() { return configuration; }
+    void setConfiguration(@NotNull ResolvedBoxConfiguration configuration) {
+        this.configuration = configuration;
+    }
+
+    @NotNull BoxTemplate getTemplate() { return template; }
+    void setTemplate(@NotNull BoxTemplate template) { this.template = template; }
+
     boolean isPrintInvalidInstanceLevelConfigMessage() { return printInvalidInstanceLevelConfigMessage; }
     void markPrintInvalidInstanceLevelConfigMessage() {
         this.printInvalidInstanceLevelConfigMessage = true;
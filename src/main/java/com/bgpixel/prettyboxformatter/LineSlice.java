@@ -0,0 +1,50 @@
+package com.bgpixel.prettyboxformatter;
+
+import org.jetbrains.annotations.NotNull;
+
+/** A part of a content line, used when a line is split to fit the box. Only points into the
+ *  original line, so splitting copies nothing. Instances are reused by RenderContext, so they must
+ *  never be kept after the box is drawn. */
+final class LineSlice implements CharSequence {
+
+    @NotNull private CharSequence source = "";
+    private int start;
+    private int end;
+
+    /** Points the slice to given part of source. A slice of another slice points straight into
+     *  that slice's source, so sinks can always copy from the original line. */
+    @NotNull
+    LineSlice set(@NotNull CharSequence source, int start, int end) {
+        if(source instanceof LineSlice) {
+            LineSlice slice = (LineSlice) source;
+            source = slice.source;
+            start += slice.start;
+            end += slice.start;
+        }
+        this.source = source;
+        this.start = start;
+        this.end = end;
+        return this;
+    }
+
+    /** Drops the reference to the source line. */
+    void clear() { set("", 0, 0); }
+
+    @NotNull CharSequence getSource() { return source; }
+    int getStart() { return start; }
+    int getEnd() { return end; }
+
+    @Override public int length() { return end - start; }
+    @Override public char charAt(int index) { return source.charAt(start + index); }
+
+    @NotNull
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return source.subSequence(this.start + start, this.start + end);
+    }
+
+    @NotNull
+    @Override
+    public String toString() { return source.subSequence(start, end).toString(); }
+
+}
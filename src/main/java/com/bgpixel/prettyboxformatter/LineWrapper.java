@@ -0,0 +1,317 @@
+package com.bgpixel.prettyboxformatter;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+
+/** Splits a line wider than the box (or containing line breaks) into rows, according to a
+ *  WrapMode. Rows are kept as ranges
+ *  of the original line (start, end and display width of each), so wrapping copies nothing;
+ *  callers turn them into LineSlices.<br/>
+ *  A line break (LF or CR LF) inside the line always ends a row, so text with embedded newlines
+ *  (e.g. a stack trace) can be passed as a single line. A line break at the very end of the line
+ *  doesn't start another row. Line breaks are found while wrapping, so splitting such text
+ *  copies nothing either.<br/>
+ *  Rows never split a cluster or an escape sequence (see DisplayWidth). With WORD and OPTIMAL
+ *  rows end before a run of spaces, which is skipped, and the next row starts at the following
+ *  word. Only a space (U+0020) is a break opportunity. Leading spaces of the line (indentation)
+ *  stay with its first word. Words wider than the box are split like with CHARACTER.<br/>
+ *  CHARACTER and WORD take a single pass over the line. For plain text (see
+ *  DisplayWidth#isPlain) they don't measure it at all: rows are as long as they are wide, so
+ *  only the chars at the end of each row are looked at. OPTIMAL (minimum raggedness, i.e. the
+ *  smallest sum of squared free space over all rows but the last, as in Knuth-Plass without
+ *  hyphenation and stretching) considers for each word only the rows ending at it that fit into
+ *  the box, so its cost grows with the number of words times words per row.<br/>
+ *  Arrays are reused, so an instance must not be used by several threads at once. */
+final class LineWrapper {
+
+    @NotNull private static final int[] NO_VALUES = new int[0];
+    @NotNull private static final long[] NO_COSTS = new long[0];
+
+    /** Rows of the last wrapped line. */
+    @NotNull private int[] starts = NO_VALUES;
+    @NotNull private int[] ends = NO_VALUES;
+    @NotNull private int[] widths = NO_VALUES;
+    private int count = 0;
+
+    /** Words of the line for OPTIMAL: range, display width and width of spaces before each. */
+    @NotNull private int[] wordStarts = NO_VALUES;
+    @NotNull private int[] wordEnds = NO_VALUES;
+    @NotNull private int[] wordWidths = NO_VALUES;
+    @NotNull private int[] wordGaps = NO_VALUES;
+    private int wordCount = 0;
+
+    /** Cost of the best rows up to each word and index of the first word of the last row. */
+    @NotNull private long[] costs = NO_COSTS;
+    @NotNull private int[] rowFirstWords = NO_VALUES;
+
+    /** Splits given line into rows at most maxWidth columns wide (unless a single cluster is
+     *  wider), and at line breaks. Replaces rows of the previously wrapped line. */
+    void wrap(@NotNull CharSequence line, int maxWidth, @NotNull WrapMode mode) {
+        count = 0;
+        int length = line.length();
+        if(maxWidth > 0 && DisplayWidth.isPlain(line)) {
+            // no line breaks, and every char is a cluster one column wide
+            switch (mode) {
+                case CHARACTER:
+                    for(int i = 0; i < length; i += maxWidth)
+                        addRow(i, Math.min(i + maxWidth, length), Math.min(maxWidth, length - i));
+                    break;
+                case WORD:
+                    for(int i = 0; i < length; ) {
+                        int end = nextPlainWordRowEnd(line, i, length, maxWidth);
+                        addRow(i, end, end - i);
+                        i = skipSpaces(line, end, length);
+                    }
+                    break;
+                case OPTIMAL:
+                    wrapOptimally(line, 0, length, maxWidth);
+                    break;
+            }
+            if(count == 0) addRow(0, 0, 0);
+            return;
+        }
+
+        int start = 0;
+        do {
+            int end = start;
+            int breakLength = 0;
+            while(end < length && (breakLength = lineBreakLength(line, end)) == 0) end++;
+
+            int firstRow = count;
+            switch (mode) {
+                case CHARACTER:
+                    wrapByCharacter(line, start, end, maxWidth);
+                    break;
+                case WORD:
+                    wrapByWord(line, start, end, maxWidth);
+                    break;
+                case OPTIMAL:
+                    wrapOptimally(line, start, end, maxWidth);
+                    break;
+            }
+            // an empty line between two line breaks is an empty row
+            if(count == firstRow) addRow(start, start, 0);
+            start = end + breakLength;
+        } while(start < length);
+    }
+
+    /** True if given line contains a line break. */
+    static boolean hasLineBreak(@NotNull CharSequence line) {
+        for(int i = 0; i < line.length(); i++)
+            if(line.charAt(i) == '\n') return true;
+        return false;
+    }
+
+    /** Returns the length of the line break (LF or CR LF) at given index, or 0 if there is none. */
+    static int lineBreakLength(@NotNull CharSequence line, int index) {
+        char c = line.charAt(index);
+        if(c == '\n') return 1;
+        if(c == '\r' && index + 1 < line.length() && line.charAt(index + 1) == '\n') return 2;
+        return 0;
+    }
+
+    int getCount() { return count; }
+    int getStart(int row) { return starts[row]; }
+    int getEnd(int row) { return ends[row]; }
+    int getWidth(int row) { return widths[row]; }
+
+    /** Drops arrays grown beyond given number of rows or words. */
+    void trim(int maxRetained) {
+        if(starts.length > maxRetained) starts = ends = widths = NO_VALUES;
+        if(wordStarts.length > maxRetained) {
+            wordStarts = wordEnds = wordWidths = wordGaps = rowFirstWords = NO_VALUES;
+            costs = NO_COSTS;
+        }
+        count = 0;
+        wordCount = 0;
+    }
+
+
+    // ------------------------------------------------------------------------------------ INTERNAL
+
+    private void wrapByCharacter(@NotNull CharSequence line, int start, int end, int maxWidth) {
+        for (int i = start; i < end; ) {
+            long fit = DisplayWidth.fit(line, i, end, maxWidth);
+            addRow(i, DisplayWidth.endOf(fit), DisplayWidth.widthOf(fit));
+            i = DisplayWidth.endOf(fit);
+        }
+    }
+
+    private void wrapByWord(@NotNull CharSequence line, int start, int end, int maxWidth) {
+        int i = start;
+        while(i < end) {
+            long row = nextWordRow(line, i, end, maxWidth);
+            addRow(i, DisplayWidth.endOf(row), DisplayWidth.widthOf(row));
+            i = skipSpaces(line, DisplayWidth.endOf(row), end);
+        }
+    }
+
+    /** Finds the longest row starting at given index that ends before a space and fits into
+     *  given number of columns. Falls back to {@link DisplayWidth#fit} if there is no such row.
+     *  Result is packed like the one of fit. */
+    private static long nextWordRow(@NotNull CharSequence line, int start, int lineEnd,
+                                    int maxWidth) {
+        int width = 0;
+        int breakEnd = start;
+        int breakWidth = 0;
+        int i = start;
+        while(i < lineEnd) {
+            char c = line.charAt(i);
+            // the first space after a word is where the row can end
+            if(c == ' ' && i != start && line.charAt(i - 1) != ' ') {
+                breakEnd = i;
+                breakWidth = width;
+            }
+
+            long cluster = DisplayWidth.cluster(line, i, lineEnd);
+            int clusterWidth = DisplayWidth.widthOf(cluster);
+            if(width + clusterWidth > maxWidth && i != start) {
+                if(breakEnd == start) return DisplayWidth.fit(line, start, lineEnd, maxWidth);
+                return ((long) breakEnd << 32) | breakWidth;
+            }
+            width += clusterWidth;
+            i = DisplayWidth.endOf(cluster);
+        }
+        return ((long) i << 32) | width;
+    }
+
+    /** Same as {@link #nextWordRow} for plain text (see DisplayWidth#isPlain), where width equals
+     *  length: the row ends at the last space after a word within maxWidth chars, found backwards
+     *  without measuring. Returns the end of the row. */
+    private static int nextPlainWordRowEnd(@NotNull CharSequence line, int start, int lineEnd,
+                                           int maxWidth) {
+        if(lineEnd - start <= maxWidth) return lineEnd;
+        int limit = start + maxWidth;
+        for(int i = limit; i > start; i--)
+            if(line.charAt(i) == ' ' && line.charAt(i - 1) != ' ') return i;
+        return limit;
+    }
+
+    private void wrapOptimally(@NotNull CharSequence line, int start, int end, int maxWidth) {
+        splitIntoWords(line, start, end, maxWidth);
+        if(wordCount == 0) return;
+
+        if(costs.length < wordCount + 1) {
+            costs = new long[wordCount + 1];
+            rowFirstWords = new int[wordCount + 1];
+        }
+
+        // costs[k]: best cost of rows holding the first k words
+        costs[0] = 0;
+        for(int last = 0; last < wordCount; last++) {
+            long best = Long.MAX_VALUE;
+            int bestFirst = last;
+            int width = wordWidths[last];
+            for(int first = last; first >= 0; first--) {
+                if(first != last) width += wordWidths[first] + wordGaps[first + 1];
+                // a single word wider than the box is a row of its own
+                if(width > maxWidth && first != last) break;
+
+                long free = maxWidth - width;
+                long cost = costs[first] + (last == wordCount - 1? 0 : free * free);
+                if(cost < best) {
+                    best = cost;
+                    bestFirst = first;
+                }
+            }
+            costs[last + 1] = best;
+            rowFirstWords[last + 1] = bestFirst;
+        }
+
+        // rows are found from the last one back, so they are added in reverse and flipped
+        int firstRow = count;
+        for(int next = wordCount; next > 0; next = rowFirstWords[next]) {
+            int first = rowFirstWords[next];
+            int width = 0;
+            for(int word = first; word < next; word++)
+                width += wordWidths[word] + (word == first? 0 : wordGaps[word]);
+            addRow(wordStarts[first], wordEnds[next - 1], width);
+        }
+        reverseRows(firstRow);
+    }
+
+    /** Puts words of the line into word arrays. Words wider than maxWidth are split into parts
+     *  that fit, with no gap between them. */
+    private void splitIntoWords(@NotNull CharSequence line, int lineStart, int lineEnd,
+                                int maxWidth) {
+        wordCount = 0;
+        int i = lineStart;
+        while(i < lineEnd) {
+            int gapStart = i;
+            if(wordCount != 0) i = skipSpaces(line, i, lineEnd);
+            if(i == lineEnd) break;
+
+            int gap = i - gapStart;
+            int start = i;
+            int width = 0;
+            // the first word takes leading spaces as well
+            boolean leading = wordCount == 0;
+            while(i < lineEnd) {
+                char c = line.charAt(i);
+                if(c == ' ' && !leading) break;
+                if(c != ' ') leading = false;
+
+                long cluster = DisplayWidth.cluster(line, i, lineEnd);
+                int clusterWidth = DisplayWidth.widthOf(cluster);
+                if(width + clusterWidth > maxWidth && i != start) {
+                    addWord(start, i, width, gap);
+                    gap = 0;
+                    start = i;
+                    width = 0;
+                }
+                width += clusterWidth;
+                i = DisplayWidth.endOf(cluster);
+            }
+            addWord(start, i, width, gap);
+        }
+    }
+
+    private static int skipSpaces(@NotNull CharSequence line, int index, int lineEnd) {
+        while(index < lineEnd && line.charAt(index) == ' ') index++;
+        return index;
+    }
+
+    private void addRow(int start, int end, int width) {
+        if(count == starts.length) {
+            int capacity = Math.max(8, count * 2);
+            starts = Arrays.copyOf(starts, capacity);
+            ends = Arrays.copyOf(ends, capacity);
+            widths = Arrays.copyOf(widths, capacity);
+        }
+        starts[count] = start;
+        ends[count] = end;
+        widths[count] = width;
+        count++;
+    }
+
+    private void addWord(int start, int end, int width, int gap) {
+        if(wordCount == wordStarts.length) {
+            int capacity = Math.max(8, wordCount * 2);
+            wordStarts = Arrays.copyOf(wordStarts, capacity);
+            wordEnds = Arrays.copyOf(wordEnds, capacity);
+            wordWidths = Arrays.copyOf(wordWidths, capacity);
+            wordGaps = Arrays.copyOf(wordGaps, capacity);
+        }
+        wordStarts[wordCount] = start;
+        wordEnds[wordCount] = end;
+        wordWidths[wordCount] = width;
+        wordGaps[wordCount] = gap;
+        wordCount++;
+    }
+
+    private void reverseRows(int from) {
+        for(int low = from, high = count - 1; low < high; low++, high--) {
+            swap(starts, low, high);
+            swap(ends, low, high);
+            swap(widths, low, high);
+        }
+    }
+
+    private static void swap(@NotNull int[] values, int first, int second) {
+        int value = values[first];
+        values[first] = values[second];
+        values[second] = value;
+    }
+
+}
@@ -0,0 +1,170 @@
+package com.bgpixel.prettyboxformatter;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/** Fork/join versions of the two loops over all content lines: the max width scan and drawing of
+ *  content rows. Used for boxes with a lot of rows. Lists must support fast random access.<br/>
+ *  Drawing relies on every content row and inner line of a box having the same length in chars
+ *  (i.e. display width of every line equals its length), so the exact position of each row in
+ *  the output array is known up front. Rows are drawn into separate regions of the same array, so
+ *  the result is identical to drawing them one by one. */
+final class ParallelRendering {
+
+    /** Ranges are split until they have at most this many lines. */
+    static final int MAX_LINES_PER_TASK = 4096;
+
+    /** Set in the result of measure if the width of some line doesn't match its length. */
+    private static final long MISMATCH = 1L << 32;
+    /** Set in the result of measure if some line contains a line break. */
+    private static final long LINE_BREAKS = 1L << 33;
+    /** Set in the result of measure if some line contains an escape sequence. */
+    private static final long ESCAPES = 1L << 34;
+
+    private ParallelRendering() {}
+
+    /** Puts display width of each line into given array. Returns the width of the widest line,
+     *  whether all widths match lengths and whether any line contains a line break or an escape
+     *  sequence, see {@link #maxWidthOf(long)}, {@link #widthsMatchLengths(long)},
+     *  {@link #hasLineBreaks(long)} and {@link #hasEscapes(long)}. */
+    static long measure(@NotNull List<CharSequence> lines, @NotNull int[] widths) {
+        return ForkJoinPool.commonPool().invoke(new MeasureTask(lines, widths, 0, lines.size()));
+    }
+
+    static int maxWidthOf(long measured) { return (int) measured; }
+
+    static boolean widthsMatchLengths(long measured) { return (measured & MISMATCH) == 0; }
+
+    static boolean hasLineBreaks(long measured) { return (measured & LINE_BREAKS) != 0; }
+
+    static boolean hasEscapes(long measured) { return (measured & ESCAPES) != 0; }
+
+    /** Draws all lines as rows of the box into the given array, starting at given position.
+     *  Lines must already fit into the template's content width, and be as wide as they are
+     *  long.
+     *  @param rowStarted true if a row was already drawn before position (i.e. the first line
+     *  must be preceded by a newline)
+     *  @return position right after the last drawn row */
+    static int drawRows(@NotNull char[] chars,
+                        int position,
+                        boolean rowStarted,
+                        @NotNull BoxTemplate template,
+                        @NotNull List<CharSequence> lines) {
+        if(lines.isEmpty()) return position;
+
+        int rowStride = BoxSink.NEWLINE.length() + template.getRowLength();
+        // as if the first row was preceded by a newline, even if it isn't
+        int firstRowStart = rowStarted? position : position - BoxSink.NEWLINE.length();
+
+        ForkJoinPool.commonPool().invoke(new DrawRowsTask(chars, firstRowStart, rowStride,
+                rowStarted, template, lines, 0, lines.size()));
+        return firstRowStart + lines.size() * rowStride;
+    }
+
+    @SuppressWarnings("serial") // never serialized
+    private static final class MeasureTask extends RecursiveTask<Long> {
+
+        @NotNull private final List<CharSequence> lines;
+        @NotNull private final int[] widths;
+        private final int from;
+        private final int to;
+
+        MeasureTask(@NotNull List<CharSequence> lines, @NotNull int[] widths, int from, int to) {
+            this.lines = lines;
+            this.widths = widths;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Long compute() {
+            if(to - from <= MAX_LINES_PER_TASK) {
+                int max = 0;
+                long flags = 0;
+                for(int i = from; i < to; i++) {
+                    CharSequence line = lines.get(i);
+                    long measured = DisplayWidth.measure(line);
+                    int width = DisplayWidth.widthOf(measured);
+                    widths[i] = width;
+                    max = Math.max(max, width);
+                    if(width != line.length()) flags |= MISMATCH;
+                    if(DisplayWidth.hasLineBreak(measured)) flags |= LINE_BREAKS;
+                    if(DisplayWidth.hasEscapes(measured)) flags |= ESCAPES;
+                }
+                return max | flags;
+            }
+
+            int middle = (from + to) >>> 1;
+            MeasureTask left = new MeasureTask(lines, widths, from, middle);
+            left.fork();
+            long right = new MeasureTask(lines, widths, middle, to).compute();
+            long leftResult = left.join();
+            return Math.max((int) leftResult, (int) right)
+                    | ((leftResult | right) & (MISMATCH | LINE_BREAKS | ESCAPES));
+        }
+    }
+
+    @SuppressWarnings("serial") // never serialized
+    private static final class DrawRowsTask extends RecursiveAction {
+
+        @NotNull private final char[] chars;
+        private final int firstRowStart;
+        private final int rowStride;
+        private final boolean rowStarted;
+        @NotNull private final BoxTemplate template;
+        @NotNull private final List<CharSequence> lines;
+        private final int from;
+        private final int to;
+
+        DrawRowsTask(@NotNull char[] chars, int firstRowStart, int rowStride, boolean rowStarted,
+                     @NotNull BoxTemplate template, @NotNull List<CharSequence> lines,
+                     int from, int to) {
+            this.chars = chars;
+            this.firstRowStart = firstRowStart;
+            this.rowStride = rowStride;
+            this.rowStarted = rowStarted;
+            this.template = template;
+            this.lines = lines;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if(to - from <= MAX_LINES_PER_TASK) {
+                drawRange();
+                return;
+            }
+
+            int middle = (from + to) >>> 1;
+            invokeAll(new DrawRowsTask(chars, firstRowStart, rowStride, rowStarted,
+                            template, lines, from, middle),
+                    new DrawRowsTask(chars, firstRowStart, rowStride, rowStarted,
+                            template, lines, middle, to));
+        }
+
+        private void drawRange() {
+            boolean firstRowOfBox = from == 0 && !rowStarted;
+            int position = firstRowStart + from * rowStride;
+            CharArrayBoxSink sink = new CharArrayBoxSink(chars);
+            sink.reset(chars, firstRowOfBox? position + BoxSink.NEWLINE.length() : position,
+                    !firstRowOfBox);
+
+            try {
+                for(int i = from; i < to; i++) {
+                    CharSequence line = lines.get(i);
+                    template.drawFittedLine(sink, line, line.length());
+                }
+            } catch (IOException e) {
+                // CharArrayBoxSink never throws IOException
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+}
@@ -5,7 +5,9 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Objects;
 
 @SuppressWarnings("WeakerAccess") // this is a library, and this class is part of library interface
 public class PrettyBoxConfiguration {
@@ -13,6 +15,9 @@ public class PrettyBoxConfiguration {
     @Nullable private final Boolean prefixEveryPrintWithNewline;
     @Nullable private final Integer charsPerLine;
     @Nullable private final Boolean wrapContent;
+    @Nullable private final WrapMode wrapMode;
+    @Nullable private final Boolean normalizeContent;
+    @Nullable private final Integer tabSize;
     @Nullable private final Boolean borderLeft;
     @Nullable private final Boolean borderRight;
     @Nullable private final Boolean borderTop;
@@ -29,9 +34,15 @@ public class PrettyBoxConfiguration {
     @Nullable private final List<BoxMetaData> headerMetadata;
     @Nullable private final List<BoxMetaData> footerMetadata;
 
+    /** Cached hash code, calculated on first use. Instances are immutable, so it never changes. */
+    private int hashCode;
+
     private PrettyBoxConfiguration(@Nullable Boolean prefixEveryPrintWithNewline,
                                    @Nullable Integer charsPerLine,
                                    @Nullable Boolean wrapContent,
+                                   @Nullable WrapMode wrapMode,
+                                   @Nullable Boolean normalizeContent,
+                                   @Nullable Integer tabSize,
                                    @Nullable Boolean borderLeft,
                                    @Nullable Boolean borderRight,
                                    @Nullable Boolean borderTop,
@@ -50,6 +61,9 @@ public class PrettyBoxConfiguration {
         this.prefixEveryPrintWithNewline = prefixEveryPrintWithNewline;
         this.charsPerLine = charsPerLine;
         this.wrapContent = wrapContent;
+        this.wrapMode = wrapMode;
+        this.normalizeContent = normalizeContent;
+        this.tabSize = tabSize;
         this.borderLeft = borderLeft;
         this.borderRight = borderRight;
         this.borderTop = borderTop;
@@ -70,6 +84,9 @@ public class PrettyBoxConfiguration {
     @Nullable public Boolean getPrefixEveryPrintWithNewline() { return prefixEveryPrintWithNewline; }
     @Nullable public Integer getCharsPerLine() { return charsPerLine; }
     @Nullable public Boolean getWrapContent() { return wrapContent; }
+    @Nullable public WrapMode getWrapMode() { return wrapMode; }
+    @Nullable public Boolean getNormalizeContent() { return normalizeContent; }
+    @Nullable public Integer getTabSize() { return tabSize; }
     @Nullable public Boolean getBorderLeft() { return borderLeft; }
     @Nullable public Boolean getBorderRight() { return borderRight; }
     @Nullable public Boolean getBorderTop() { return borderTop; }
@@ -100,12 +117,62 @@ public class PrettyBoxConfiguration {
         else return lineset.get(lineLevel);
     }
 
+    /** Two configurations are equal if all their settings are equal. LineTypes are compared by
+     *  identity (unless a LineType implementation says otherwise). */
+    @Override
+    public boolean equals(@Nullable Object o) {
+        if(this == o) return true;
+        if(!(o instanceof PrettyBoxConfiguration)) return false;
+        PrettyBoxConfiguration that = (PrettyBoxConfiguration) o;
+        return hashCode() == that.hashCode()
+                && Objects.equals(prefixEveryPrintWithNewline, that.prefixEveryPrintWithNewline)
+                && Objects.equals(charsPerLine, that.charsPerLine)
+                && Objects.equals(wrapContent, that.wrapContent)
+                && wrapMode == that.wrapMode
+                && Objects.equals(normalizeContent, that.normalizeContent)
+                && Objects.equals(tabSize, that.tabSize)
+                && Objects.equals(borderLeft, that.borderLeft)
+                && Objects.equals(borderRight, that.borderRight)
+                && Objects.equals(borderTop, that.borderTop)
+                && Objects.equals(borderBottom, that.borderBottom)
+                && Objects.equals(lineset, that.lineset)
+                && Objects.equals(paddingLeft, that.paddingLeft)
+                && Objects.equals(paddingRight, that.paddingRight)
+                && Objects.equals(paddingTop, that.paddingTop)
+                && Objects.equals(paddingBottom, that.paddingBottom)
+                && Objects.equals(marginLeft, that.marginLeft)
+                && Objects.equals(marginRight, that.marginRight)
+                && Objects.equals(marginTop, that.marginTop)
+                && Objects.equals(marginBottom, that.marginBottom)
+                && Objects.equals(headerMetadata, that.headerMetadata)
+                && Objects.equals(footerMetadata, that.footerMetadata);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = hashCode;
+        if(result == 0) {
+            result = Objects.hash(prefixEveryPrintWithNewline, charsPerLine, wrapContent, wrapMode,
+                    normalizeContent, tabSize,
+                    borderLeft, borderRight, borderTop, borderBottom,
+                    lineset,
+                    paddingLeft, paddingRight, paddingTop, paddingBottom,
+                    marginLeft, marginRight, marginTop, marginBottom,
+                    headerMetadata, footerMetadata);
+            hashCode = result;
+        }
+        return result;
+    }
+
     @SuppressWarnings("UnusedReturnValue")
     public static class Builder {
 
         @Nullable private Boolean prefixEveryPrintWithNewline = false;
         @Nullable private Integer charsPerLine;
         @Nullable private Boolean wrapContent;
+        @Nullable private WrapMode wrapMode;
+        @Nullable private Boolean normalizeContent;
+        @Nullable private Integer tabSize;
         @Nullable private Boolean borderLeft;
         @Nullable private Boolean borderRight;
         @Nullable private Boolean borderTop;
@@ -129,6 +196,9 @@ public class PrettyBoxConfiguration {
             builder.setPrefixEveryPrintWithNewline(configuration.getPrefixEveryPrintWithNewline());
             builder.setCharsPerLine(configuration.getCharsPerLine());
             builder.setWrapContent(configuration.getWrapContent());
+            builder.setWrapMode(configuration.getWrapMode());
+            builder.setNormalizeContent(configuration.getNormalizeContent());
+            builder.setTabSize(configuration.getTabSize());
             builder.setBorderLeft(configuration.getBorderLeft());
             builder.setBorderRight(configuration.getBorderRight());
             builder.setBorderTop(configuration.getBorderTop());
@@ -157,6 +227,12 @@ public class PrettyBoxConfiguration {
                 this.charsPerLine = configuration.getCharsPerLine();
             if(configuration.getWrapContent() != null)
                 this.wrapContent = configuration.getWrapContent();
+            if(configuration.getWrapMode() != null)
+                this.wrapMode = configuration.getWrapMode();
+            if(configuration.getNormalizeContent() != null)
+                this.normalizeContent = configuration.getNormalizeContent();
+            if(configuration.getTabSize() != null)
+                this.tabSize = configuration.getTabSize();
             if(configuration.getBorderLeft() != null)
                 this.borderLeft = configuration.getBorderLeft();
             if(configuration.getBorderRight() != null)
@@ -166,7 +242,7 @@ public class PrettyBoxConfiguration {
             if(configuration.getBorderBottom() != null)
                 this.borderBottom = configuration.getBorderBottom();
             if(configuration.getLineset() != null)
-                this.lineset = configuration.getLineset();
+                this.lineset = new ArrayList<>(configuration.getLineset());
             if(configuration.getPaddingLeft() != null)
                 this.paddingLeft = configuration.getPaddingLeft();
             if(configuration.getPaddingRight() != null)
@@ -218,6 +294,32 @@ public class PrettyBoxConfiguration {
             return this;
         }
 
+        /** How lines wider than the box are split into rows. Defaults to
+         *  {@link WrapMode#CHARACTER}. */
+        @NotNull
+        public Builder setWrapMode(@Nullable WrapMode wrapMode) {
+            this.wrapMode = wrapMode;
+            return this;
+        }
+
+        /** If set to true, content is cleaned up before drawing: tabs are expanded to spaces (see
+         *  {@link #setTabSize(Integer)}), carriage returns removed and other control characters
+         *  replaced by visible symbols, so they can neither break the box nor inject anything into
+         *  the output. Line breaks and ANSI escape sequences are kept. Defaults to false. */
+        @NotNull
+        public Builder setNormalizeContent(@Nullable Boolean normalizeContent) {
+            this.normalizeContent = normalizeContent;
+            return this;
+        }
+
+        /** Distance between tab stops used when content is normalized. Must be more than zero.
+         *  Defaults to 4. */
+        @NotNull
+        public Builder setTabSize(@Nullable Integer tabSize) {
+            this.tabSize = tabSize;
+            return this;
+        }
+
         @NotNull
         public Builder setBorderLeft(@Nullable Boolean borderLeft) {
             this.borderLeft = borderLeft;
@@ -294,7 +396,7 @@ public class PrettyBoxConfiguration {
          *  will overwrite any values previously set with borderLineType or innerLineType. */
         @NotNull
         public Builder setLineset(@Nullable List<LineType> lineset) {
-            this.lineset = lineset;
+            this.lineset = lineset == null? null : new ArrayList<>(lineset);
             return this;
         }
 
@@ -398,17 +500,27 @@ public class PrettyBoxConfiguration {
             return this;
         }
 
+        /** Builds an immutable PrettyBoxConfiguration instance. Lists are copied, so changing
+         *  them (or this Builder) afterwards will not affect the built instance. */
         @NotNull
         public PrettyBoxConfiguration build() {
             return new PrettyBoxConfiguration(
                     prefixEveryPrintWithNewline,
                     charsPerLine,
                     wrapContent,
+                    wrapMode,
+                    normalizeContent,
+                    tabSize,
                     borderLeft, borderRight, borderTop, borderBottom,
-                    lineset,
+                    immutableCopy(lineset),
                     paddingLeft, paddingRight, paddingTop, paddingBottom,
                     marginLeft, marginRight, marginTop, marginBottom,
-                    headerMetadata, footerMetadata);
+                    immutableCopy(headerMetadata), immutableCopy(footerMetadata));
+        }
+
+        @Nullable
+        private static <T> List<T> immutableCopy(@Nullable List<T> list) {
+            return list == null? null : Collections.unmodifiableList(new ArrayList<>(list));
         }
 
     }
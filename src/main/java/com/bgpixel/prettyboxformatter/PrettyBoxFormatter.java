@@ -6,24 +6,37 @@ import com.bgpixel.prettyboxformatter.linetype.LineType;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
-import java.util.TimeZone;
+import java.util.RandomAccess;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Stream;
 
 @SuppressWarnings({"WeakerAccess"})
 public class PrettyBoxFormatter {
 
-    private static final String NEWLINE = System.getProperty("line.separator");
-
     @NotNull
     private static final PrettyBoxConfiguration DEFAULT_CONFIGURATION =
             new PrettyBoxConfiguration.Builder()
                     .setPrefixEveryPrintWithNewline(false)
                     .setCharsPerLine(80)
                     .setWrapContent(true)
+                    .setWrapMode(WrapMode.CHARACTER)
+                    .setNormalizeContent(false)
+                    .setTabSize(4)
                     .setBorders(true)
                     .setBorderLineType(LineType.LINE)
                     .setInnerLineType(LineType.DASH_TRIPLE)
@@ -39,20 +52,46 @@ public class PrettyBoxFormatter {
             "Warning: this PrettyBoxFormatter has been configured using an invalid instance-level " +
                     "PrettyBoxConfiguration. Falling back to default configuration!";
 
-    /** Instance-level configuration. Combined with per-call instances (if given). */
-    @NotNull private PrettyBoxConfiguration configuration = DEFAULT_CONFIGURATION;
+    /** Used in place of an invalid configuration. Holds the default configuration. */
+    @NotNull
+    private static final ConfigurationSnapshot INVALID_CONFIGURATION_SNAPSHOT =
+            new ConfigurationSnapshot(DEFAULT_CONFIGURATION,
+                    new ResolvedBoxConfiguration(DEFAULT_CONFIGURATION), true);
+
+    /** Max number of resolved per-call configurations cached by a formatter. Once reached, a
+     *  random one is evicted for each new one. */
+    private static final int MAX_CACHED_PER_CALL_CONFIGURATIONS = 32;
+
+    /** Default max number of chars of streamed content kept in memory, see
+     *  {@link #setStreamingBufferLimit(int)}. */
+    public static final int DEFAULT_STREAMING_BUFFER_LIMIT = 4 * 1024 * 1024;
+
+    /** Default min number of content rows for a box to be rendered in parallel, see
+     *  {@link #setParallelRenderingThreshold(int)}. */
+    public static final int DEFAULT_PARALLEL_RENDERING_THRESHOLD = 100_000;
+
+    /** Max number of boxes per worker thread that formatAll keeps in flight (being rendered or
+     *  waiting to be written in order). */
+    public static final int BATCH_BOXES_PER_WORKER = 4;
 
-    /** Set to true if client attempted to set an invalid instance-level configuration instance. If
-     *  true, will use a default configuration and display a warning message with every printing
-     *  call. */
-    private boolean invalidConfiguration = false;
+    /** Max size of a single box, in chars or bytes. Some VMs reserve header words in arrays. */
+    private static final int MAX_BOX_SIZE = Integer.MAX_VALUE - 8;
 
-    /** The maximum width of the box (exact width if wrap is false) that can be used for content. */
-    private int maxContentWidth;
+    /** Instance-level configuration, resolved and published as a whole. Combined with per-call
+     *  instances (if given). Read only once per printing call, so a PrettyBoxFormatter instance can
+     *  be shared between threads, even if setConfiguration is called while printing.<br/>
+     *  If client attempted to set an invalid instance-level configuration instance, will hold the
+     *  default configuration and display a warning message with every printing call. */
+    @NotNull private volatile ConfigurationSnapshot snapshot;
 
-    /** The maximum width (exact width if wrap is false) of horizontal lines used for horizontal
-     *  edges and to split content into sections. */
-    private int maxLineWidth;
+    private volatile int streamingBufferLimit = DEFAULT_STREAMING_BUFFER_LIMIT;
+    private volatile int parallelRenderingThreshold = DEFAULT_PARALLEL_RENDERING_THRESHOLD;
+
+    /** Resolved per-call configurations, keyed by the configuration instances passed by client.
+     *  Per-call configurations are merged with the default (not instance-level) configuration, so
+     *  cached values stay valid when the instance-level configuration changes. */
+    @NotNull private final ConcurrentHashMap<PrettyBoxConfiguration, ConfigurationSnapshot>
+            perCallSnapshots = new ConcurrentHashMap<>();
 
 
     public PrettyBoxFormatter() {
@@ -69,20 +108,30 @@ public class PrettyBoxFormatter {
      *  If the resulting configuration is not valid, previous configuration will not be changed and
      *  a warning message will be output with all future printing calls. */
     public void setConfiguration(@NotNull PrettyBoxConfiguration configuration) {
-        PrettyBoxConfiguration combinedConfiguration =
-                PrettyBoxConfiguration.Builder.createFromInstance(DEFAULT_CONFIGURATION)
-                        .applyFromInstance(configuration)
-                        .build();
+        this.snapshot = resolveConfiguration(configuration);
+    }
 
-        invalidConfiguration = !validateConfiguration(combinedConfiguration);
-        this.configuration = invalidConfiguration ? DEFAULT_CONFIGURATION : combinedConfiguration;
+    /** Sets the max number of chars of content kept in memory while streaming with wrapContent
+     *  set to true (see {@link #streamTo(Appendable, Iterator)}). Content beyond this limit is
+     *  spilled to a temporary file. Defaults to {@link #DEFAULT_STREAMING_BUFFER_LIMIT}. */
+    public void setStreamingBufferLimit(int maxBufferedChars) {
+        if(maxBufferedChars < 0)
+            throw new IllegalArgumentException("Negative buffer limit: " + maxBufferedChars);
+        this.streamingBufferLimit = maxBufferedChars;
+    }
 
-        maxContentWidth = determineMaxContentWidth(this.configuration);
-        maxLineWidth = determineMaxLineWidth(this.configuration);
+    /** Sets the min number of content lines for which the width scan and rendering of a box
+     *  returned by format are split across cores (using the common ForkJoinPool). The result is
+     *  the same as with sequential rendering. Use Integer.MAX_VALUE to always render on the
+     *  calling thread. Defaults to {@link #DEFAULT_PARALLEL_RENDERING_THRESHOLD}. */
+    public void setParallelRenderingThreshold(int minLines) {
+        if(minLines < 1)
+            throw new IllegalArgumentException("Threshold must be positive: " + minLines);
+        this.parallelRenderingThreshold = minLines;
     }
 
     /** Returns the used instance-level PrettyBoxConfiguration instance. */
-    @NotNull public PrettyBoxConfiguration getConfiguration() { return configuration; }
+    @NotNull public PrettyBoxConfiguration getConfiguration() { return snapshot.getConfiguration(); }
 
 
     // -------------------------------------------------------------------------------------- FORMAT
@@ -152,107 +201,1100 @@ public class PrettyBoxFormatter {
     }
 
 
+    // ----------------------------------------------------------------------------------- FORMAT TO
+
+    /** Works like {@link #format(PrettyBoxable)}, but instead of returning a String, the box is
+     *  written row by row directly into the given Appendable (e.g. a StringBuilder, a Writer or a
+     *  PrintStream). No newline is appended after the last row of the box. */
+    public void formatTo(@NotNull Appendable target,
+                         @NotNull PrettyBoxable prettyBoxable) throws IOException {
+        runFormattingTask(target, null, prettyBoxable.toStringLines(), null, prettyBoxable);
+    }
+
+    /** Works like {@link #format(PrettyBoxable, PrettyBoxConfiguration)}, but writes the box
+     *  directly into the given Appendable. See {@link #formatTo(Appendable, PrettyBoxable)}. */
+    public void formatTo(@NotNull Appendable target,
+                         @NotNull PrettyBoxable prettyBoxable,
+                         @NotNull PrettyBoxConfiguration configuration) throws IOException {
+        runFormattingTask(target, null, prettyBoxable.toStringLines(), configuration, prettyBoxable);
+    }
+
+    /** Works like {@link #format(List)}, but writes the box directly into the given Appendable.
+     *  See {@link #formatTo(Appendable, PrettyBoxable)}. */
+    public void formatTo(@NotNull Appendable target,
+                         @NotNull List<CharSequence> lines) throws IOException {
+        runFormattingTask(target, null, lines, null, lines);
+    }
+
+    /** Works like {@link #format(List, PrettyBoxConfiguration)}, but writes the box directly into
+     *  the given Appendable. See {@link #formatTo(Appendable, PrettyBoxable)}. */
+    public void formatTo(@NotNull Appendable target,
+                         @NotNull List<CharSequence> lines,
+                         @NotNull PrettyBoxConfiguration configuration) throws IOException {
+        runFormattingTask(target, null, lines, configuration, lines);
+    }
+
+    /** Works like {@link #format(String, PrettyBoxable)}, but writes the box directly into the
+     *  given Appendable. See {@link #formatTo(Appendable, PrettyBoxable)}. */
+    public void formatTo(@NotNull Appendable target,
+                         @NotNull String title,
+                         @NotNull PrettyBoxable prettyBoxable) throws IOException {
+        runFormattingTask(target, title, prettyBoxable.toStringLines(), null, prettyBoxable);
+    }
+
+    /** Works like {@link #format(String, PrettyBoxable, PrettyBoxConfiguration)}, but writes the
+     *  box directly into the given Appendable. See {@link #formatTo(Appendable, PrettyBoxable)}. */
+    public void formatTo(@NotNull Appendable target,
+                         @NotNull String title,
+                         @NotNull PrettyBoxable prettyBoxable,
+                         @NotNull PrettyBoxConfiguration configuration) throws IOException {
+        runFormattingTask(target, title, prettyBoxable.toStringLines(), configuration, prettyBoxable);
+    }
+
+    /** Works like {@link #format(String, List)}, but writes the box directly into the given
+     *  Appendable. See {@link #formatTo(Appendable, PrettyBoxable)}. */
+    public void formatTo(@NotNull Appendable target,
+                         @NotNull String title,
+                         @NotNull List<CharSequence> lines) throws IOException {
+        runFormattingTask(target, title, lines, null, lines);
+    }
+
+    /** Works like {@link #format(String, List, PrettyBoxConfiguration)}, but writes the box
+     *  directly into the given Appendable. See {@link #formatTo(Appendable, PrettyBoxable)}. */
+    public void formatTo(@NotNull Appendable target,
+                         @NotNull String title,
+                         @NotNull List<CharSequence> lines,
+                         @NotNull PrettyBoxConfiguration configuration) throws IOException {
+        runFormattingTask(target, title, lines, configuration, lines);
+    }
+
+
+    // ----------------------------------------------------------------------------- FORMAT TO BYTES
+
+    /** Works like {@link #format(PrettyBoxable)}, but instead of returning a String, the box is
+     *  written as UTF-8 encoded bytes directly into the given ByteBuffer (heap or direct), starting
+     *  at its current position. Box-drawing characters are copied from a pre-encoded form, so only
+     *  the content gets encoded. No newline is appended after the last row of the box.<br/>
+     *  Use {@link ByteBuffer#wrap(byte[])} to write into a byte array.
+     *  @throws BufferOverflowException if there is not enough space remaining in the buffer. The
+     *  exact size of the box is computed before drawing, so in that case the buffer is unchanged. */
+    public void formatTo(@NotNull ByteBuffer target,
+                         @NotNull PrettyBoxable prettyBoxable) {
+        runFormattingTask(target, null, prettyBoxable.toStringLines(), null, prettyBoxable);
+    }
+
+    /** Works like {@link #format(PrettyBoxable, PrettyBoxConfiguration)}, but writes the box as
+     *  UTF-8 directly into the given ByteBuffer. See {@link #formatTo(ByteBuffer, PrettyBoxable)}. */
+    public void formatTo(@NotNull ByteBuffer target,
+                         @NotNull PrettyBoxable prettyBoxable,
+                         @NotNull PrettyBoxConfiguration configuration) {
+        runFormattingTask(target, null, prettyBoxable.toStringLines(), configuration, prettyBoxable);
+    }
+
+    /** Works like {@link #format(List)}, but writes the box as UTF-8 directly into the given
+     *  ByteBuffer. See {@link #formatTo(ByteBuffer, PrettyBoxable)}. */
+    public void formatTo(@NotNull ByteBuffer target,
+                         @NotNull List<CharSequence> lines) {
+        runFormattingTask(target, null, lines, null, lines);
+    }
+
+    /** Works like {@link #format(List, PrettyBoxConfiguration)}, but writes the box as UTF-8
+     *  directly into the given ByteBuffer. See {@link #formatTo(ByteBuffer, PrettyBoxable)}. */
+    public void formatTo(@NotNull ByteBuffer target,
+                         @NotNull List<CharSequence> lines,
+                         @NotNull PrettyBoxConfiguration configuration) {
+        runFormattingTask(target, null, lines, configuration, lines);
+    }
+
+    /** Works like {@link #format(String, PrettyBoxable)}, but writes the box as UTF-8 directly
+     *  into the given ByteBuffer. See {@link #formatTo(ByteBuffer, PrettyBoxable)}. */
+    public void formatTo(@NotNull ByteBuffer target,
+                         @NotNull String title,
+                         @NotNull PrettyBoxable prettyBoxable) {
+        runFormattingTask(target, title, prettyBoxable.toStringLines(), null, prettyBoxable);
+    }
+
+    /** Works like {@link #format(String, PrettyBoxable, PrettyBoxConfiguration)}, but writes the
+     *  box as UTF-8 directly into the given ByteBuffer.
+     *  See {@link #formatTo(ByteBuffer, PrettyBoxable)}. */
+    public void formatTo(@NotNull ByteBuffer target,
+                         @NotNull String title,
+                         @NotNull PrettyBoxable prettyBoxable,
+                         @NotNull PrettyBoxConfiguration configuration) {
+        runFormattingTask(target, title, prettyBoxable.toStringLines(), configuration, prettyBoxable);
+    }
+
+    /** Works like {@link #format(String, List)}, but writes the box as UTF-8 directly into the
+     *  given ByteBuffer. See {@link #formatTo(ByteBuffer, PrettyBoxable)}. */
+    public void formatTo(@NotNull ByteBuffer target,
+                         @NotNull String title,
+                         @NotNull List<CharSequence> lines) {
+        runFormattingTask(target, title, lines, null, lines);
+    }
+
+    /** Works like {@link #format(String, List, PrettyBoxConfiguration)}, but writes the box as
+     *  UTF-8 directly into the given ByteBuffer. See {@link #formatTo(ByteBuffer, PrettyBoxable)}. */
+    public void formatTo(@NotNull ByteBuffer target,
+                         @NotNull String title,
+                         @NotNull List<CharSequence> lines,
+                         @NotNull PrettyBoxConfiguration configuration) {
+        runFormattingTask(target, title, lines, configuration, lines);
+    }
+
+
+    // ----------------------------------------------------------------------------------- STREAM TO
+
+    /** Draws a box around content that is read from the given Iterator while the box is being
+     *  written, so content never has to be held in memory as a whole (e.g. a report with millions
+     *  of lines). Rows are written into the given Appendable as soon as they are read. If the
+     *  target is Flushable, it is flushed after each row. No newline is appended after the last
+     *  row of the box.<br/>
+     *  With wrapContent set to false, the width of the box is known before reading content, so
+     *  only the current row is held in memory. With wrapContent set to true, all content is read
+     *  first, to find the longest line, and the box is written once input ends. Content is then
+     *  kept in memory up to {@link #setStreamingBufferLimit(int)} chars and the rest is spilled
+     *  to a temporary file. Use {@link #streamTo(Appendable, Iterable)} for content that can be
+     *  read twice, to avoid buffering altogether.<br/>
+     *  If the Iterator (or the target) throws, the box is left unfinished. */
+    public void streamTo(@NotNull Appendable target,
+                         @NotNull Iterator<? extends CharSequence> lines) throws IOException {
+        runStreamingTask(target, null, lines, null, null, lines);
+    }
+
+    /** Works like {@link #streamTo(Appendable, Iterator)}, using the given per-call
+     *  configuration. See {@link #format(List, PrettyBoxConfiguration)}. */
+    public void streamTo(@NotNull Appendable target,
+                         @NotNull Iterator<? extends CharSequence> lines,
+                         @NotNull PrettyBoxConfiguration configuration) throws IOException {
+        runStreamingTask(target, null, lines, null, configuration, lines);
+    }
+
+    /** Convenience method that adds a title String to header. Otherwise works like
+     *  {@link #streamTo(Appendable, Iterator)}. */
+    public void streamTo(@NotNull Appendable target,
+                         @NotNull String title,
+                         @NotNull Iterator<? extends CharSequence> lines) throws IOException {
+        runStreamingTask(target, title, lines, null, null, lines);
+    }
+
+    /** Convenience method that adds a title String to header. Otherwise works like
+     *  {@link #streamTo(Appendable, Iterator, PrettyBoxConfiguration)}. */
+    public void streamTo(@NotNull Appendable target,
+                         @NotNull String title,
+                         @NotNull Iterator<? extends CharSequence> lines,
+                         @NotNull PrettyBoxConfiguration configuration) throws IOException {
+        runStreamingTask(target, title, lines, null, configuration, lines);
+    }
+
+    /** Works like {@link #streamTo(Appendable, Iterator)}, but content is read from the given
+     *  Iterable. With wrapContent set to true, it is iterated twice (once to find the longest line
+     *  and once to draw the box), so content is never buffered. The Iterable must return the same
+     *  lines each time (e.g. a collection or lines of a file read anew). */
+    public void streamTo(@NotNull Appendable target,
+                         @NotNull Iterable<? extends CharSequence> lines) throws IOException {
+        runStreamingTask(target, null, null, lines, null, lines);
+    }
+
+    /** Works like {@link #streamTo(Appendable, Iterable)}, using the given per-call
+     *  configuration. See {@link #format(List, PrettyBoxConfiguration)}. */
+    public void streamTo(@NotNull Appendable target,
+                         @NotNull Iterable<? extends CharSequence> lines,
+                         @NotNull PrettyBoxConfiguration configuration) throws IOException {
+        runStreamingTask(target, null, null, lines, configuration, lines);
+    }
+
+    /** Convenience method that adds a title String to header. Otherwise works like
+     *  {@link #streamTo(Appendable, Iterable)}. */
+    public void streamTo(@NotNull Appendable target,
+                         @NotNull String title,
+                         @NotNull Iterable<? extends CharSequence> lines) throws IOException {
+        runStreamingTask(target, title, null, lines, null, lines);
+    }
+
+    /** Convenience method that adds a title String to header. Otherwise works like
+     *  {@link #streamTo(Appendable, Iterable, PrettyBoxConfiguration)}. */
+    public void streamTo(@NotNull Appendable target,
+                         @NotNull String title,
+                         @NotNull Iterable<? extends CharSequence> lines,
+                         @NotNull PrettyBoxConfiguration configuration) throws IOException {
+        runStreamingTask(target, title, null, lines, configuration, lines);
+    }
+
+    /** Works like {@link #streamTo(Appendable, Iterator)}, reading content from the given Stream.
+     *  The Stream is consumed, but not closed. */
+    public void streamTo(@NotNull Appendable target,
+                         @NotNull Stream<? extends CharSequence> lines) throws IOException {
+        runStreamingTask(target, null, lines.iterator(), null, null, lines);
+    }
+
+    /** Works like {@link #streamTo(Appendable, Iterator, PrettyBoxConfiguration)}, reading content
+     *  from the given Stream. The Stream is consumed, but not closed. */
+    public void streamTo(@NotNull Appendable target,
+                         @NotNull Stream<? extends CharSequence> lines,
+                         @NotNull PrettyBoxConfiguration configuration) throws IOException {
+        runStreamingTask(target, null, lines.iterator(), null, configuration, lines);
+    }
+
+    /** Works like {@link #streamTo(Appendable, String, Iterator)}, reading content from the given
+     *  Stream. The Stream is consumed, but not closed. */
+    public void streamTo(@NotNull Appendable target,
+                         @NotNull String title,
+                         @NotNull Stream<? extends CharSequence> lines) throws IOException {
+        runStreamingTask(target, title, lines.iterator(), null, null, lines);
+    }
+
+    /** Works like {@link #streamTo(Appendable, String, Iterator, PrettyBoxConfiguration)}, reading
+     *  content from the given Stream. The Stream is consumed, but not closed. */
+    public void streamTo(@NotNull Appendable target,
+                         @NotNull String title,
+                         @NotNull Stream<? extends CharSequence> lines,
+                         @NotNull PrettyBoxConfiguration configuration) throws IOException {
+        runStreamingTask(target, title, lines.iterator(), null, configuration, lines);
+    }
+
+
+    // ------------------------------------------------------------------------------------ OPEN BOX
+
+    /** Opens a box whose content is appended later, possibly from many threads, using the returned
+     *  BoxWriter. The top of the box is written into the given Appendable right away and the bottom
+     *  once the BoxWriter is closed. The box is as wide as the configuration allows (wrapContent is
+     *  ignored). See {@link BoxWriter}. */
+    @NotNull
+    public BoxWriter openBox(@NotNull Appendable target) throws IOException {
+        return runOpenBoxTask(target, null, null);
+    }
+
+    /** Works like {@link #openBox(Appendable)}, using the given per-call configuration. See
+     *  {@link #format(List, PrettyBoxConfiguration)}. */
+    @NotNull
+    public BoxWriter openBox(@NotNull Appendable target,
+                             @NotNull PrettyBoxConfiguration configuration) throws IOException {
+        return runOpenBoxTask(target, null, configuration);
+    }
+
+    /** Convenience method that adds a title String to header. Otherwise works like
+     *  {@link #openBox(Appendable)}. */
+    @NotNull
+    public BoxWriter openBox(@NotNull Appendable target,
+                             @NotNull String title) throws IOException {
+        return runOpenBoxTask(target, title, null);
+    }
+
+    /** Convenience method that adds a title String to header. Otherwise works like
+     *  {@link #openBox(Appendable, PrettyBoxConfiguration)}. */
+    @NotNull
+    public BoxWriter openBox(@NotNull Appendable target,
+                             @NotNull String title,
+                             @NotNull PrettyBoxConfiguration configuration) throws IOException {
+        return runOpenBoxTask(target, title, configuration);
+    }
+
+
+    // ---------------------------------------------------------------------------------- FORMAT ALL
+
+    /** Formats each PrettyBoxable like {@link #format(PrettyBoxable)} and writes the boxes into
+     *  the given Appendable in input order, separated by newlines (no newline after the last box).
+     *  <br/>
+     *  Configuration is resolved once for the whole batch. Calls to toStringLines and rendering run
+     *  in parallel on the common ForkJoinPool, while the calling thread reads the input and writes
+     *  finished boxes. At most {@link #BATCH_BOXES_PER_WORKER} boxes per worker are in flight or
+     *  waiting to be written, so memory use doesn't depend on the size of the batch. If rendering
+     *  a box throws, boxes before it have been written and the exception is rethrown. */
+    public void formatAll(@NotNull Appendable target,
+                          @NotNull Iterable<? extends PrettyBoxable> prettyBoxables)
+            throws IOException {
+        runBatchFormattingTask(target, prettyBoxables.iterator(), null);
+    }
+
+    /** Works like {@link #formatAll(Appendable, Iterable)}, using the given per-call
+     *  configuration for all boxes. See {@link #format(PrettyBoxable, PrettyBoxConfiguration)}. */
+    public void formatAll(@NotNull Appendable target,
+                          @NotNull Iterable<? extends PrettyBoxable> prettyBoxables,
+                          @NotNull PrettyBoxConfiguration configuration) throws IOException {
+        runBatchFormattingTask(target, prettyBoxables.iterator(), configuration);
+    }
+
+    /** Works like {@link #formatAll(Appendable, Iterable)}, reading PrettyBoxables from the given
+     *  Stream as they are needed. The Stream is consumed, but not closed. */
+    public void formatAll(@NotNull Appendable target,
+                          @NotNull Stream<? extends PrettyBoxable> prettyBoxables)
+            throws IOException {
+        runBatchFormattingTask(target, prettyBoxables.iterator(), null);
+    }
+
+    /** Works like {@link #formatAll(Appendable, Iterable, PrettyBoxConfiguration)}, reading
+     *  PrettyBoxables from the given Stream as they are needed. The Stream is consumed, but not
+     *  closed. */
+    public void formatAll(@NotNull Appendable target,
+                          @NotNull Stream<? extends PrettyBoxable> prettyBoxables,
+                          @NotNull PrettyBoxConfiguration configuration) throws IOException {
+        runBatchFormattingTask(target, prettyBoxables.iterator(), configuration);
+    }
+
+
+    // -------------------------------------------------------------------------------- FORMAT ASYNC
+
+    /** Works like {@link #format(PrettyBoxable)}, but the box is formatted (including the call to
+     *  toStringLines) on another thread: a new virtual thread on Java 21+, or the common
+     *  ForkJoinPool on older versions. The returned future completes with the box. */
+    @NotNull
+    public CompletableFuture<String> formatAsync(@NotNull PrettyBoxable prettyBoxable) {
+        return formatAsync(prettyBoxable, DefaultExecutor.get());
+    }
+
+    /** Works like {@link #formatAsync(PrettyBoxable)}, formatting the box using given Executor. */
+    @NotNull
+    public CompletableFuture<String> formatAsync(@NotNull PrettyBoxable prettyBoxable,
+                                                 @NotNull Executor executor) {
+        return runAsyncFormattingTask(executor, prettyBoxable, null);
+    }
+
+    /** Works like {@link #format(PrettyBoxable, PrettyBoxConfiguration)}, but the box is
+     *  formatted on another thread. See {@link #formatAsync(PrettyBoxable)}. */
+    @NotNull
+    public CompletableFuture<String> formatAsync(@NotNull PrettyBoxable prettyBoxable,
+                                                 @NotNull PrettyBoxConfiguration configuration) {
+        return formatAsync(prettyBoxable, configuration, DefaultExecutor.get());
+    }
+
+    /** Works like {@link #formatAsync(PrettyBoxable, PrettyBoxConfiguration)}, formatting the box
+     *  using given Executor. */
+    @NotNull
+    public CompletableFuture<String> formatAsync(@NotNull PrettyBoxable prettyBoxable,
+                                                 @NotNull PrettyBoxConfiguration configuration,
+                                                 @NotNull Executor executor) {
+        return runAsyncFormattingTask(executor, prettyBoxable, configuration);
+    }
+
+    /** Works like {@link #format(List)}, but the box is formatted on another thread. See
+     *  {@link #formatAsync(PrettyBoxable)}. The list must not be modified until the returned
+     *  future completes. */
+    @NotNull
+    public CompletableFuture<String> formatAsync(@NotNull List<CharSequence> lines) {
+        return formatAsync(lines, DefaultExecutor.get());
+    }
+
+    /** Works like {@link #formatAsync(List)}, formatting the box using given Executor. */
+    @NotNull
+    public CompletableFuture<String> formatAsync(@NotNull List<CharSequence> lines,
+                                                 @NotNull Executor executor) {
+        return runAsyncFormattingTask(executor, lines, null);
+    }
+
+    /** Works like {@link #format(List, PrettyBoxConfiguration)}, but the box is formatted on
+     *  another thread. See {@link #formatAsync(List)}. */
+    @NotNull
+    public CompletableFuture<String> formatAsync(@NotNull List<CharSequence> lines,
+                                                 @NotNull PrettyBoxConfiguration configuration) {
+        return formatAsync(lines, configuration, DefaultExecutor.get());
+    }
+
+    /** Works like {@link #formatAsync(List, PrettyBoxConfiguration)}, formatting the box using
+     *  given Executor. */
+    @NotNull
+    public CompletableFuture<String> formatAsync(@NotNull List<CharSequence> lines,
+                                                 @NotNull PrettyBoxConfiguration configuration,
+                                                 @NotNull Executor executor) {
+        return runAsyncFormattingTask(executor, lines, configuration);
+    }
+
+    /** Works like {@link #formatTo(Appendable, PrettyBoxable)}, but the box is formatted and
+     *  written on another thread (see {@link #formatAsync(PrettyBoxable)}). The returned future
+     *  completes once the whole box has been written, or exceptionally with the IOException
+     *  thrown by the target. */
+    @NotNull
+    public CompletableFuture<Void> formatToAsync(@NotNull Appendable target,
+                                                 @NotNull PrettyBoxable prettyBoxable) {
+        return formatToAsync(target, prettyBoxable, DefaultExecutor.get());
+    }
+
+    /** Works like {@link #formatToAsync(Appendable, PrettyBoxable)}, formatting and writing the
+     *  box using given Executor. */
+    @NotNull
+    public CompletableFuture<Void> formatToAsync(@NotNull Appendable target,
+                                                 @NotNull PrettyBoxable prettyBoxable,
+                                                 @NotNull Executor executor) {
+        return runAsyncFormattingTask(executor, target, prettyBoxable, null);
+    }
+
+    /** Works like {@link #formatTo(Appendable, PrettyBoxable, PrettyBoxConfiguration)}, but the
+     *  box is formatted and written on another thread. See
+     *  {@link #formatToAsync(Appendable, PrettyBoxable)}. */
+    @NotNull
+    public CompletableFuture<Void> formatToAsync(@NotNull Appendable target,
+                                                 @NotNull PrettyBoxable prettyBoxable,
+                                                 @NotNull PrettyBoxConfiguration configuration) {
+        return formatToAsync(target, prettyBoxable, configuration, DefaultExecutor.get());
+    }
+
+    /** Works like {@link #formatToAsync(Appendable, PrettyBoxable, PrettyBoxConfiguration)},
+     *  formatting and writing the box using given Executor. */
+    @NotNull
+    public CompletableFuture<Void> formatToAsync(@NotNull Appendable target,
+                                                 @NotNull PrettyBoxable prettyBoxable,
+                                                 @NotNull PrettyBoxConfiguration configuration,
+                                                 @NotNull Executor executor) {
+        return runAsyncFormattingTask(executor, target, prettyBoxable, configuration);
+    }
+
+    /** Works like {@link #formatTo(Appendable, List)}, but the box is formatted and written on
+     *  another thread. See {@link #formatToAsync(Appendable, PrettyBoxable)}. The list must not
+     *  be modified until the returned future completes. */
+    @NotNull
+    public CompletableFuture<Void> formatToAsync(@NotNull Appendable target,
+                                                 @NotNull List<CharSequence> lines) {
+        return formatToAsync(target, lines, DefaultExecutor.get());
+    }
+
+    /** Works like {@link #formatToAsync(Appendable, List)}, formatting and writing the box using
+     *  given Executor. */
+    @NotNull
+    public CompletableFuture<Void> formatToAsync(@NotNull Appendable target,
+                                                 @NotNull List<CharSequence> lines,
+                                                 @NotNull Executor executor) {
+        return runAsyncFormattingTask(executor, target, lines, null);
+    }
+
+    /** Works like {@link #formatTo(Appendable, List, PrettyBoxConfiguration)}, but the box is
+     *  formatted and written on another thread. See {@link #formatToAsync(Appendable, List)}. */
+    @NotNull
+    public CompletableFuture<Void> formatToAsync(@NotNull Appendable target,
+                                                 @NotNull List<CharSequence> lines,
+                                                 @NotNull PrettyBoxConfiguration configuration) {
+        return formatToAsync(target, lines, configuration, DefaultExecutor.get());
+    }
+
+    /** Works like {@link #formatToAsync(Appendable, List, PrettyBoxConfiguration)}, formatting
+     *  and writing the box using given Executor. */
+    @NotNull
+    public CompletableFuture<Void> formatToAsync(@NotNull Appendable target,
+                                                 @NotNull List<CharSequence> lines,
+                                                 @NotNull PrettyBoxConfiguration configuration,
+                                                 @NotNull Executor executor) {
+        return runAsyncFormattingTask(executor, target, lines, configuration);
+    }
+
+
+    // -------------------------------------------------------------------------------- PUBLISH ROWS
+
+    /** Returns a publisher emitting the box {@link #format(PrettyBoxable)} would return, row by
+     *  row, as subscribers request them. Rows are rendered only when requested, so a slow
+     *  subscriber (e.g. a log shipper) throttles rendering. See {@link BoxRowPublisher}. */
+    @NotNull
+    public BoxRowPublisher publishRows(@NotNull PrettyBoxable prettyBoxable) {
+        return new BoxRowPublisher(this, null, prettyBoxable, null);
+    }
+
+    /** Works like {@link #publishRows(PrettyBoxable)}, using the given per-call configuration. */
+    @NotNull
+    public BoxRowPublisher publishRows(@NotNull PrettyBoxable prettyBoxable,
+                                       @NotNull PrettyBoxConfiguration configuration) {
+        return new BoxRowPublisher(this, null, prettyBoxable, configuration);
+    }
+
+    /** Works like {@link #publishRows(PrettyBoxable)}, emitting the box
+     *  {@link #format(List)} would return. The list must not be modified while rows are being
+     *  emitted. */
+    @NotNull
+    public BoxRowPublisher publishRows(@NotNull List<CharSequence> lines) {
+        return new BoxRowPublisher(this, null, lines, null);
+    }
+
+    /** Works like {@link #publishRows(List)}, using the given per-call configuration. */
+    @NotNull
+    public BoxRowPublisher publishRows(@NotNull List<CharSequence> lines,
+                                       @NotNull PrettyBoxConfiguration configuration) {
+        return new BoxRowPublisher(this, null, lines, configuration);
+    }
+
+
     // ------------------------------------------------------------------------------ MAIN ALGORITHM
 
+    @NotNull
     private String runFormattingTask(@Nullable String title,
                                      @NotNull List<CharSequence> lines,
                                      @Nullable PrettyBoxConfiguration perCallConfiguration,
                                      @Nullable Object sourceObject) {
+        RenderContext context = RenderContext.acquire();
+        try {
+            FormattingTaskData taskData = prepareFormattingTask(context,
+                    title, lines, perCallConfiguration, sourceObject);
+            return drawBoxToString(context, taskData);
+        } finally {
+            context.release();
+        }
+    }
+
+    private void runFormattingTask(@NotNull Appendable target,
+                                   @Nullable String title,
+                                   @NotNull List<CharSequence> lines,
+                                   @Nullable PrettyBoxConfiguration perCallConfiguration,
+                                   @Nullable Object sourceObject) throws IOException {
+        RenderContext context = RenderContext.acquire();
+        try {
+            FormattingTaskData taskData = prepareFormattingTask(context,
+                    title, lines, perCallConfiguration, sourceObject);
+
+            if(target instanceof StringBuilder) {
+                StringBuilder stringBuilder = (StringBuilder) target;
+                stringBuilder.ensureCapacity(stringBuilder.length() + measureBox(taskData, false));
+            }
+            drawBox(context.appendableSink(target), taskData);
+        } finally {
+            context.release();
+        }
+    }
+
+    private void runFormattingTask(@NotNull ByteBuffer target,
+                                   @Nullable String title,
+                                   @NotNull List<CharSequence> lines,
+                                   @Nullable PrettyBoxConfiguration perCallConfiguration,
+                                   @Nullable Object sourceObject) {
+        RenderContext context = RenderContext.acquire();
+        try {
+            FormattingTaskData taskData = prepareFormattingTask(context,
+                    title, lines, perCallConfiguration, sourceObject);
+
+            // Fail before writing anything, so the buffer is never left with a partial box
+            if(measureBox(taskData, true) > target.remaining())
+                throw new BufferOverflowException();
+            drawBox(context.utf8Sink(target), taskData);
+        } catch (IOException e) {
+            // Utf8BoxSink never throws IOException
+            throw new IllegalStateException(e);
+        } finally {
+            context.release();
+        }
+    }
+
+    /** Draws the box as UTF-8, followed by a newline, into the given buffer (cleared first).
+     *  If the box doesn't fit, a new buffer of exactly the required size is used instead.
+     *  Returns the buffer holding the box, flipped (i.e. ready to be written). Used by
+     *  BoxPrinter. */
+    @NotNull
+    ByteBuffer runPrintingTask(@NotNull ByteBuffer reusableBuffer,
+                               @Nullable String title,
+                               @NotNull List<CharSequence> lines,
+                               @Nullable PrettyBoxConfiguration perCallConfiguration,
+                               @Nullable Object sourceObject) {
+        RenderContext context = RenderContext.acquire();
+        try {
+            FormattingTaskData taskData = prepareFormattingTask(context,
+                    title, lines, perCallConfiguration, sourceObject);
+
+            int size = measureBox(taskData, true) + BoxSink.NEWLINE.length();
+
+            ByteBuffer target = reusableBuffer.capacity() >= size?
+                    reusableBuffer : ByteBuffer.allocate(size);
+            target.clear();
+            Utf8BoxSink sink = context.utf8Sink(target);
+            drawBox(sink, taskData);
+            sink.appendNewline();
+            target.flip();
+            return target;
+        } catch (IOException e) {
+            // Utf8BoxSink never throws IOException
+            throw new IllegalStateException(e);
+        } finally {
+            context.release();
+        }
+    }
+
+    private void runBatchFormattingTask(@NotNull Appendable target,
+                                        @NotNull Iterator<? extends PrettyBoxable> prettyBoxables,
+                                        @Nullable PrettyBoxConfiguration perCallConfiguration)
+            throws IOException {
+        runBatchFormattingTask(target, prettyBoxables, perCallConfiguration,
+                BATCH_BOXES_PER_WORKER);
+    }
+
+    /** formatAll keeping given number of boxes per worker in flight. Package-private, so
+     *  benchmarks can compare window sizes. */
+    void runBatchFormattingTask(@NotNull Appendable target,
+                                @NotNull Iterator<? extends PrettyBoxable> prettyBoxables,
+                                @Nullable PrettyBoxConfiguration perCallConfiguration,
+                                int boxesPerWorker) throws IOException {
+        // Resolved once, then copied into each box's task data
+        final FormattingTaskData batchData = new FormattingTaskData();
+        final ConfigurationSnapshot snapshotToUse =
+                resolveTaskConfiguration(batchData, perCallConfiguration);
+
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        int maxInFlight = boxesPerWorker * pool.getParallelism();
+        ArrayDeque<ForkJoinTask<String>> inFlight = new ArrayDeque<>(maxInFlight);
+        boolean boxWritten = false;
+
+        try {
+            while(prettyBoxables.hasNext() || !inFlight.isEmpty()) {
+                // Keep the window full. Once it is, write the oldest box to make room.
+                if(prettyBoxables.hasNext() && inFlight.size() < maxInFlight) {
+                    final PrettyBoxable prettyBoxable = prettyBoxables.next();
+                    inFlight.add(pool.submit(new Callable<String>() {
+                        @Override
+                        public String call() {
+                            return runBatchItemTask(prettyBoxable, snapshotToUse, batchData);
+                        }
+                    }));
+                    continue;
+                }
+
+                //noinspection ConstantConditions
+                String box = inFlight.poll().join();
+                if(boxWritten) target.append(BoxSink.NEWLINE);
+                target.append(box);
+                boxWritten = true;
+            }
+        } finally {
+            // only non-empty if something has thrown
+            for(ForkJoinTask<String> task : inFlight) task.cancel(false);
+        }
+    }
+
+    /** Draws a single box of a batch. Runs on a worker thread. */
+    @NotNull
+    private String runBatchItemTask(@NotNull PrettyBoxable prettyBoxable,
+                                    @NotNull ConfigurationSnapshot snapshotToUse,
+                                    @NotNull FormattingTaskData batchData) {
+        RenderContext context = RenderContext.acquire();
+        try {
+            FormattingTaskData taskData = context.taskData;
+            taskData.copyConfiguration(batchData);
+            prepareFormattingTaskData(context, null, prettyBoxable.toStringLines(), prettyBoxable);
+            taskData.setTemplate(
+                    snapshotToUse.getTemplates().forContentWidth(taskData.getContentWidth()));
+            return drawBoxToString(context, taskData);
+        } finally {
+            context.release();
+        }
+    }
+
+    /** Draws a prepared box into a right-sized array (the exact size is known up front). */
+    @NotNull
+    private String drawBoxToString(@NotNull RenderContext context,
+                                   @NotNull FormattingTaskData taskData) {
+        CharArrayBoxSink sink = context.charArraySink(measureBox(taskData, false));
+        try {
+            // rows can be drawn in parallel only if they're all equally long
+            if(isParallel(taskData.getContentLines()) && taskData.getContentLineWidths() == null)
+                drawBoxInParallel(sink, taskData);
+            else drawBox(sink, taskData);
+        } catch (IOException e) {
+            // CharArrayBoxSink never throws IOException
+            throw new IllegalStateException(e);
+        }
+        return new String(sink.getChars(), 0, sink.getPosition());
+    }
+
+    /** Formats a PrettyBoxable (or a List of lines) on given executor. */
+    @NotNull
+    private CompletableFuture<String> runAsyncFormattingTask(
+            @NotNull Executor executor,
+            @NotNull final Object source,
+            @Nullable final PrettyBoxConfiguration perCallConfiguration) {
+        return runAsync(executor, new Callable<String>() {
+            @Override
+            public String call() {
+                return runFormattingTask(null, toStringLines(source), perCallConfiguration, source);
+            }
+        });
+    }
+
+    /** Formats a PrettyBoxable (or a List of lines) into given target on given executor. */
+    @NotNull
+    private CompletableFuture<Void> runAsyncFormattingTask(
+            @NotNull Executor executor,
+            @NotNull final Appendable target,
+            @NotNull final Object source,
+            @Nullable final PrettyBoxConfiguration perCallConfiguration) {
+        return runAsync(executor, new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                runFormattingTask(target,
+                        null, toStringLines(source), perCallConfiguration, source);
+                return null;
+            }
+        });
+    }
+
+    /** Returns content lines of a PrettyBoxable or a List of lines. */
+    @SuppressWarnings("unchecked")
+    @NotNull
+    private static List<CharSequence> toStringLines(@NotNull Object source) {
+        return source instanceof PrettyBoxable?
+                ((PrettyBoxable) source).toStringLines() : (List<CharSequence>) source;
+    }
+
+    /** Runs given task on given executor. The returned future completes with whatever the task
+     *  returns or throws (including checked exceptions, unwrapped), or exceptionally with
+     *  RejectedExecutionException if the executor doesn't accept the task. */
+    @NotNull
+    private static <T> CompletableFuture<T> runAsync(@NotNull Executor executor,
+                                                     @NotNull final Callable<T> task) {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        future.complete(task.call());
+                    } catch (Throwable t) {
+                        future.completeExceptionally(t);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /** Resolves the configuration to use and prepares content of the box. Returned task data is
+     *  ready to be measured and drawn. */
+    @NotNull
+    private FormattingTaskData prepareFormattingTask(
+            @NotNull RenderContext context,
+            @Nullable String title,
+            @NotNull List<CharSequence> lines,
+            @Nullable PrettyBoxConfiguration perCallConfiguration,
+            @Nullable Object sourceObject) {
+        FormattingTaskData taskData = context.taskData;
+        ConfigurationSnapshot snapshotToUse =
+                resolveTaskConfiguration(taskData, perCallConfiguration);
+        prepareFormattingTaskData(context, title, lines, sourceObject);
+        taskData.setTemplate(
+                snapshotToUse.getTemplates().forContentWidth(taskData.getContentWidth()));
+        return taskData;
+    }
+
+    /** Picks the snapshot to use (instance-level, per-call, or default if invalid), sets its
+     *  configuration to given task data and marks warning messages to be printed. */
+    @NotNull
+    private ConfigurationSnapshot resolveTaskConfiguration(
+            @NotNull FormattingTaskData taskData,
+            @Nullable PrettyBoxConfiguration perCallConfiguration) {
         // values to use (if no per-call) or as fallback (if per-call invalid)
-        PrettyBoxConfiguration configurationToUse = this.configuration;
-        int maxContentWidth = this.maxContentWidth;
-        int maxLineWidth = this.maxLineWidth;
+        ConfigurationSnapshot instanceSnapshot = this.snapshot;
+        ConfigurationSnapshot snapshotToUse = instanceSnapshot;
         boolean invalidPerCallConfiguration = false;
 
         if(perCallConfiguration != null) {
-            PrettyBoxConfiguration mergedConfig =
-                    PrettyBoxConfiguration.Builder.createFromInstance(DEFAULT_CONFIGURATION)
-                            .applyFromInstance(perCallConfiguration)
-                            .build();
+            ConfigurationSnapshot perCallSnapshot =
+                    resolvePerCallConfiguration(perCallConfiguration);
+            invalidPerCallConfiguration = perCallSnapshot.isInvalid();
+            if(!invalidPerCallConfiguration) snapshotToUse = perCallSnapshot;
+        }
 
-            invalidPerCallConfiguration = !validateConfiguration(mergedConfig);
+        if(instanceSnapshot.isInvalid()) taskData.markPrintInvalidInstanceLevelConfigMessage();
+        if(invalidPerCallConfiguration) taskData.markPrintInvalidPerCallConfigMessage();
+        taskData.setConfiguration(snapshotToUse.getResolved());
+        return snapshotToUse;
+    }
 
-            if (!invalidPerCallConfiguration) {
-                configurationToUse = mergedConfig;
-                maxContentWidth = determineMaxContentWidth(configurationToUse);
-                maxLineWidth = determineMaxLineWidth(configurationToUse);
+    /** Draws a box while reading its content, one row at a time. See streamTo.
+     *  @param replayableLines if not null, content is read from it (twice, if the width of the box
+     *  depends on content) and the lines Iterator is ignored */
+    private void runStreamingTask(@NotNull Appendable target,
+                                  @Nullable String title,
+                                  @Nullable Iterator<? extends CharSequence> lines,
+                                  @Nullable Iterable<? extends CharSequence> replayableLines,
+                                  @Nullable PrettyBoxConfiguration perCallConfiguration,
+                                  @NotNull Object sourceObject) throws IOException {
+        RenderContext context = RenderContext.acquire();
+        SpillingLineBuffer buffer = null;
+        try {
+            FormattingTaskData taskData = context.taskData;
+            ConfigurationSnapshot snapshotToUse =
+                    resolveTaskConfiguration(taskData, perCallConfiguration);
+            ResolvedBoxConfiguration configuration = taskData.getConfiguration();
+            List<CharSequence> header = addHeaderLines(context, title, sourceObject);
+            List<CharSequence> footer = addFooterLines(context, sourceObject);
+
+            int contentWidth = configuration.getMaxContentWidth();
+            if(configuration.isWrapContent()) {
+                // Width depends on the longest line, so all content is read in a first pass.
+                // Replayable content is simply read again. Otherwise, lines are buffered in memory
+                // up to a limit, and the rest is spilled to a temporary file.
+                int maxSourceWidth = 0;
+                for (CharSequence line : header)
+                    maxSourceWidth = Math.max(maxSourceWidth, widthOf(line, configuration));
+                for (CharSequence line : footer)
+                    maxSourceWidth = Math.max(maxSourceWidth, widthOf(line, configuration));
+
+                if(replayableLines != null) {
+                    for (CharSequence line : replayableLines)
+                        maxSourceWidth = Math.max(maxSourceWidth, widthOf(line, configuration));
+                } else {
+                    buffer = new SpillingLineBuffer(streamingBufferLimit);
+                    //noinspection ConstantConditions
+                    while(lines.hasNext()) {
+                        CharSequence line = lines.next();
+                        maxSourceWidth = Math.max(maxSourceWidth, widthOf(line, configuration));
+                        buffer.add(line);
+                    }
+                    lines = buffer.iterator();
+                }
+
+                contentWidth = Math.min(maxSourceWidth, contentWidth);
             }
+
+            if(replayableLines != null) lines = replayableLines.iterator();
+            taskData.setContentWidth(contentWidth);
+            taskData.setLineWidth(contentWidth
+                    + configuration.getPaddingLeft() + configuration.getPaddingRight());
+            taskData.setTemplate(snapshotToUse.getTemplates().forContentWidth(contentWidth));
+
+            Flushable flushable = target instanceof Flushable? (Flushable) target : null;
+            BoxSink sink = context.appendableSink(target);
+            LineWrapper wrapper = context.lineWrapper;
+            StringBuilder style = context.style;
+
+            drawBoxStart(sink, taskData);
+            if(flushable != null) flushable.flush();
+            for(CharSequence line : header)
+                drawStreamedLine(sink, taskData, line, wrapper, style, flushable);
+            //noinspection ConstantConditions
+            while(lines.hasNext())
+                drawStreamedLine(sink, taskData, lines.next(), wrapper, style,
+                        flushable);
+            for(CharSequence line : footer)
+                drawStreamedLine(sink, taskData, line, wrapper, style, flushable);
+            taskData.getTemplate().drawFooter(sink);
+            if(flushable != null) flushable.flush();
+        } catch (SpillingLineBuffer.SpillReadException e) {
+            throw e.getCause();
+        } finally {
+            context.release();
+            if(buffer != null) buffer.close();
         }
+    }
 
-        FormattingTaskData taskData = prepareFormattingTaskData(
-                title, lines, configurationToUse, sourceObject, maxContentWidth, maxLineWidth);
-        if(invalidConfiguration) taskData.markPrintInvalidInstanceLevelConfigMessage();
-        if(invalidPerCallConfiguration) taskData.markPrintInvalidPerCallConfigMessage();
+    @NotNull
+    private BoxWriter runOpenBoxTask(@NotNull Appendable target,
+                                     @Nullable String title,
+                                     @Nullable PrettyBoxConfiguration perCallConfiguration)
+            throws IOException {
+        RenderContext context = RenderContext.acquire();
+        try {
+            FormattingTaskData taskData = context.taskData;
+            ConfigurationSnapshot snapshotToUse =
+                    resolveTaskConfiguration(taskData, perCallConfiguration);
+            ResolvedBoxConfiguration configuration = taskData.getConfiguration();
+
+            int contentWidth = configuration.getMaxContentWidth();
+            taskData.setContentWidth(contentWidth);
+            taskData.setLineWidth(configuration.getMaxLineWidth());
+            BoxTemplate template = snapshotToUse.getTemplates().forContentWidth(contentWidth);
+            taskData.setTemplate(template);
+
+            // Metadata describes the BoxWriter, as there is no other source object
+            StringBuilder start = new StringBuilder();
+            AppendableBoxSink sink = new AppendableBoxSink(start);
+            BoxWriter writer = new BoxWriter(target, template);
+            drawBoxStart(sink, taskData);
+            for(CharSequence line : addHeaderLines(context, title, writer))
+                template.drawLine(sink, line, context.lineWrapper, context.style);
+
+            writer.open(start.toString(),
+                    new ArrayList<CharSequence>(addFooterLines(context, writer)));
+            return writer;
+        } finally {
+            context.release();
+        }
+    }
 
-        return drawBox(taskData, configurationToUse);
+    /** Prepares a box to be drawn lazily, a row at a time. Unlike other tasks, only the width of
+     *  the box is determined up front; long lines are split while being drawn. Used by
+     *  BoxRowPublisher.
+     *  @param source either a PrettyBoxable or a List of lines */
+    @NotNull
+    BoxRows runRowsTask(@Nullable String title,
+                        @NotNull Object source,
+                        @Nullable PrettyBoxConfiguration perCallConfiguration) {
+        List<CharSequence> lines = toStringLines(source);
+        RenderContext context = RenderContext.acquire();
+        try {
+            FormattingTaskData taskData = context.taskData;
+            ConfigurationSnapshot snapshotToUse =
+                    resolveTaskConfiguration(taskData, perCallConfiguration);
+            ResolvedBoxConfiguration configuration = taskData.getConfiguration();
+            // Copied, as the box outlives the context
+            List<CharSequence> header =
+                    new ArrayList<CharSequence>(addHeaderLines(context, title, source));
+            List<CharSequence> footer = new ArrayList<CharSequence>(addFooterLines(context, source));
+
+            int contentWidth = configuration.getMaxContentWidth();
+            if(configuration.isWrapContent()) {
+                int maxSourceWidth = 0;
+                for (CharSequence line : header)
+                    maxSourceWidth = Math.max(maxSourceWidth, widthOf(line, configuration));
+                for (CharSequence line : lines)
+                    maxSourceWidth = Math.max(maxSourceWidth, widthOf(line, configuration));
+                for (CharSequence line : footer)
+                    maxSourceWidth = Math.max(maxSourceWidth, widthOf(line, configuration));
+                contentWidth = Math.min(maxSourceWidth, contentWidth);
+            }
+
+            taskData.setContentWidth(contentWidth);
+            taskData.setLineWidth(contentWidth
+                    + configuration.getPaddingLeft() + configuration.getPaddingRight());
+            BoxTemplate template = snapshotToUse.getTemplates().forContentWidth(contentWidth);
+            taskData.setTemplate(template);
+
+            StringBuilder start = new StringBuilder();
+            try {
+                drawBoxStart(new AppendableBoxSink(start), taskData);
+            } catch (IOException e) {
+                // StringBuilder never throws IOException
+                throw new IllegalStateException(e);
+            }
+            return new BoxRows(start.toString(), template, header, lines, footer);
+        } finally {
+            context.release();
+        }
     }
 
-    @SuppressWarnings("ConstantConditions") // We make sure it's not null
+    /** Draws a single line of streamed content, split into multiple rows if it's too long. */
+    private static void drawStreamedLine(@NotNull BoxSink sink,
+                                         @NotNull FormattingTaskData taskData,
+                                         @NotNull CharSequence line,
+                                         @NotNull LineWrapper wrapper,
+                                         @NotNull StringBuilder style,
+                                         @Nullable Flushable flushable) throws IOException {
+        taskData.getTemplate().drawLine(sink, line, wrapper, style);
+        if(flushable != null) flushable.flush();
+    }
+
+    /** Adds header/footer to content, splits lines too long to fit and determines the width of
+     *  the box, using the configuration already set to the context's task data. */
     @NotNull
     private FormattingTaskData prepareFormattingTaskData(
+            @NotNull RenderContext context,
             @Nullable String title,
             @NotNull List<CharSequence> lines,
-            @NotNull PrettyBoxConfiguration configuration,
-            @Nullable Object sourceObject,
-            int maxContentWidth,
-            int maxLineWidth) {
-
-        // Add header/footer to content, if requested
-        List<BoxMetaData> headerData = configuration.getHeaderMetadata();
-        if(title != null || (headerData != null && headerData.size() > 0)) {
-            lines.add(0, LineWithLevel.LEVEL_0);
-            if(headerData != null && headerData.size() > 0)
-                lines.addAll(0, generateMetadata(headerData, sourceObject));
-            if(title != null) lines.add(0, title);
-        }
+            @Nullable Object sourceObject) {
 
-        List<BoxMetaData> footerData = configuration.getFooterMetadata();
-        if(footerData != null && footerData.size() > 0) {
-            lines.add(LineWithLevel.LEVEL_0);
-            lines.addAll(generateMetadata(footerData, sourceObject));
-        }
+        FormattingTaskData taskData = context.taskData;
+        ResolvedBoxConfiguration configuration = taskData.getConfiguration();
+        int maxContentWidth = configuration.getMaxContentWidth();
+
+        // Add header/footer to content, if requested. Client's list is never modified.
+        List<CharSequence> header = addHeaderLines(context, title, sourceObject);
+        List<CharSequence> footer = addFooterLines(context, sourceObject);
+        if(!header.isEmpty() || !footer.isEmpty())
+            lines = context.contentLines.set(header, lines, footer);
 
 
-        // Determine if there are content lines longer than max allowed width
+        // Determine if there are content lines wider than max allowed width. Display width of
+        // each line is kept, so it's computed only once. Lines are normalized (if enabled) in the
+        // same pass, which is then never parallel.
         int maxSourceWidth = 0;
-        for (CharSequence line : lines) maxSourceWidth = Math.max(maxSourceWidth, line.length());
+        int[] widths = context.lineWidths(lines.size());
+        boolean widthsMatchLengths = true;
+        boolean lineBreaks = false;
+        boolean escapes = false;
+        if(isParallel(lines) && !configuration.isNormalizeContent()) {
+            long result = ParallelRendering.measure(lines, widths);
+            maxSourceWidth = ParallelRendering.maxWidthOf(result);
+            widthsMatchLengths = ParallelRendering.widthsMatchLengths(result);
+            lineBreaks = ParallelRendering.hasLineBreaks(result);
+            escapes = ParallelRendering.hasEscapes(result);
+        } else {
+            // Normalized lines replace the original ones, in a list of their own once the first
+            // line actually changes
+            List<CharSequence> normalizedLines = null;
+            int i = 0;
+            for (CharSequence line : lines) {
+                if(configuration.isNormalizeContent()) {
+                    CharSequence normalized =
+                            ContentNormalizer.normalize(line, configuration.getTabSize());
+                    if(normalized != line && normalizedLines == null) {
+                        normalizedLines = context.normalizedLines;
+                        normalizedLines.addAll(lines.subList(0, i));
+                    }
+                    if(normalizedLines != null) normalizedLines.add(normalized);
+                    line = normalized;
+                }
+
+                long measured = DisplayWidth.measure(line);
+                int width = DisplayWidth.widthOf(measured);
+                widths[i++] = width;
+                maxSourceWidth = Math.max(maxSourceWidth, width);
+                if(width != line.length()) widthsMatchLengths = false;
+                if(DisplayWidth.hasLineBreak(measured)) lineBreaks = true;
+                if(DisplayWidth.hasEscapes(measured)) escapes = true;
+            }
+            if(normalizedLines != null) lines = normalizedLines;
+        }
 
-        // If there are lines longer than charsPerLine, split them to fit
-        if(maxSourceWidth > maxContentWidth) {
-            maxSourceWidth = maxContentWidth;
-            lines = splitLinesToFitBox(lines, maxContentWidth);
+        // If there are lines wider than charsPerLine or lines with line breaks, split them. Styled
+        // lines get a reset at the end of each row, so they go through the same pass.
+        if(maxSourceWidth > maxContentWidth || lineBreaks || escapes) {
+            maxSourceWidth = Math.min(maxSourceWidth, maxContentWidth);
+            lines = splitLinesToFitBox(context, lines, widths, maxContentWidth, lineBreaks,
+                    escapes);
+            widths = context.splitLineWidths(0);
+            widthsMatchLengths = true;
+            for (int i = 0; i < lines.size(); i++)
+                if(widths[i] != lines.get(i).length()) widthsMatchLengths = false;
         }
 
-        FormattingTaskData taskData = new FormattingTaskData();
         taskData.setContentLines(lines);
+        taskData.setContentLineWidths(widthsMatchLengths? null : widths);
 
         // If wrap content is TRUE, make the box as wide as the longest line we have.
-        if (configuration.getWrapContent()) {
+        if (configuration.isWrapContent()) {
             taskData.setContentWidth(maxSourceWidth);
             taskData.setLineWidth(taskData.getContentWidth()
                     + configuration.getPaddingLeft() + configuration.getPaddingRight());
         } else {
             taskData.setContentWidth(maxContentWidth);
-            taskData.setLineWidth(maxLineWidth);
+            taskData.setLineWidth(configuration.getMaxLineWidth());
         }
 
         return taskData;
     }
 
+    /** Adds title and header metadata (if any) to the context's header list and returns it. */
+    @SuppressWarnings("ConstantConditions") // We make sure it's not null
     @NotNull
-    private List<String> generateMetadata(
-            @NotNull List<BoxMetaData> boxMetaDataList,
-            @NotNull Object sourceObject) {
+    private List<CharSequence> addHeaderLines(@NotNull RenderContext context,
+                                              @Nullable String title,
+                                              @Nullable Object sourceObject) {
+        List<CharSequence> header = context.header;
+        BoxMetaData[] headerData = context.taskData.getConfiguration().getHeaderMetadata();
+        if(title != null || headerData.length > 0) {
+            if(title != null) header.add(title);
+            if(headerData.length > 0)
+                addMetadata(context, header, headerData, sourceObject);
+            header.add(LineWithLevel.LEVEL_0);
+        }
+        return header;
+    }
+
+    /** Adds footer metadata (if any) to the context's footer list and returns it. */
+    @SuppressWarnings("ConstantConditions") // We make sure it's not null
+    @NotNull
+    private List<CharSequence> addFooterLines(@NotNull RenderContext context,
+                                              @Nullable Object sourceObject) {
+        List<CharSequence> footer = context.footer;
+        BoxMetaData[] footerData = context.taskData.getConfiguration().getFooterMetadata();
+        if(footerData.length > 0) {
+            footer.add(LineWithLevel.LEVEL_0);
+            addMetadata(context, footer, footerData, sourceObject);
+        }
+        return footer;
+    }
 
-        List<String> metadata = new ArrayList<>();
+    private void addMetadata(
+            @NotNull RenderContext context,
+            @NotNull List<CharSequence> metadata,
+            @NotNull BoxMetaData[] boxMetaDataList,
+            @NotNull Object sourceObject) {
 
         for(BoxMetaData boxMetaData : boxMetaDataList) {
             switch (boxMetaData) {
                 case CURRENT_TIME:
-                    TimeZone tz = TimeZone.getTimeZone("UTC");
-                    DateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm'Z'");
-                    df.setTimeZone(tz);
-                    metadata.add(df.format(new Date()));
+                    metadata.add(context.formatCurrentTime());
                     break;
                 case FULL_CLASS_NAME:
                     metadata.add(sourceObject.getClass().getCanonicalName());
@@ -271,262 +1313,245 @@ public class PrettyBoxFormatter {
                     break;
             }
         }
-
-        return metadata;
     }
 
-    // stuff is nullable, but we make sure the default settings provide fallback non-null values
-    @SuppressWarnings("ConstantConditions")
-    @NotNull
-    private String drawBox(@NotNull FormattingTaskData taskData,
-                           @NotNull PrettyBoxConfiguration configuration) {
-        ArrayList<CharSequence> lines = new ArrayList<>();
-
-        // Optimization. Set length to 0 before every use.
-        StringBuilder stringBuilder = new StringBuilder();
-
-        // Terminology note: "draw" methods take StringBuilder and "draw" into it. "Generate"
-        // methods generate and return a list of Strings (lines to be output). They also take
-        // StringBuilder for optimization purposes, but its content after the call is irrelevant
-
-        if(invalidConfiguration) lines.add(INVALID_PER_CALL_CONFIGURATION_MESSAGE);
-        if(invalidConfiguration) lines.add(INVALID_INSTANCE_LEVEL_CONFIGURATION_MESSAGE);
+    private void drawBox(@NotNull BoxSink sink,
+                         @NotNull FormattingTaskData taskData) throws IOException {
+        // Terminology note: "draw" methods draw rows of the box directly into the sink. Everything
+        // except the content itself is copied from the template.
+        ResolvedBoxConfiguration configuration = taskData.getConfiguration();
+        BoxTemplate template = taskData.getTemplate();
 
-        if(configuration.getPrefixEveryPrintWithNewline())
-            lines.add(" "); // add one space because of logcat (won't print initial \n lines)
-
-        if(configuration.getMarginTop() != 0)
-            lines.addAll(generateVerticalSpaces(configuration.getMarginTop()));
-
-        if(configuration.getBorderTop()) {
-            stringBuilder.setLength(0);
-            drawOuterLine(true, stringBuilder, taskData.getLineWidth(), configuration);
-            lines.add(stringBuilder.toString());
-        }
-
-        if(configuration.getPaddingTop() != 0) {
-            stringBuilder.setLength(0);
-            lines.addAll(generateVerticalPadding(stringBuilder, configuration.getPaddingTop(),
-                    taskData.getLineWidth(), configuration));
-        }
+        drawBoxStart(sink, taskData);
 
         List<CharSequence> contentLines = taskData.getContentLines();
+        int[] widths = taskData.getContentLineWidths();
+        int i = 0;
         for (CharSequence contentLine : contentLines) {
-            stringBuilder.setLength(0);
-            if (contentLine instanceof LineWithLevel || contentLine instanceof LineWithType) {
-                LineType lineType;
-                if(contentLine instanceof LineWithType)
-                    lineType = ((LineWithType) contentLine).getLineType();
-                else if(contentLine instanceof LineWithLevel)
-                    lineType = configuration.getLineTypeForLevel(
-                            ((LineWithLevel) contentLine).getLineLevel());
-                else
-                    lineType = configuration.getInnerLineType();
-                drawInnerLine(stringBuilder, taskData.getLineWidth(), lineType, configuration); // TODO maybe we should call this lineLength and not width?
-            } else
-                drawContentLine(stringBuilder, contentLine, taskData.getContentWidth(), configuration);
-            lines.add(stringBuilder.toString());
+            LineType lineType = getInnerLineType(contentLine, configuration);
+            if (lineType != null) template.drawInnerLine(sink, lineType);
+            else template.drawContentLine(sink, contentLine,
+                    widths == null? contentLine.length() : widths[i]);
+            i++;
         }
 
-        if(configuration.getPaddingBottom() != 0) {
-            stringBuilder.setLength(0);
-            lines.addAll(generateVerticalPadding(stringBuilder, configuration.getPaddingBottom(),
-                    taskData.getLineWidth(), configuration));
-        }
-
-        if(configuration.getBorderBottom()) {
-            stringBuilder.setLength(0);
-            drawOuterLine(false, stringBuilder, taskData.getLineWidth(), configuration);
-            lines.add(stringBuilder.toString());
-        }
+        template.drawFooter(sink);
+    }
 
-        if(configuration.getMarginBottom() != 0)
-            lines.addAll(generateVerticalSpaces(configuration.getMarginBottom()));
+    /** Same as drawBox, but content rows are drawn in parallel. See ParallelRendering. */
+    private static void drawBoxInParallel(@NotNull CharArrayBoxSink sink,
+                                          @NotNull FormattingTaskData taskData) throws IOException {
+        drawBoxStart(sink, taskData);
 
-        return JavaUtil.join(NEWLINE, lines);
-    }
+        // a row has been drawn if anything has been drawn, as no row is empty
+        boolean rowStarted = sink.getPosition() != 0;
+        List<CharSequence> contentLines = taskData.getContentLines();
+        int position = ParallelRendering.drawRows(sink.getChars(), sink.getPosition(), rowStarted,
+                taskData.getTemplate(), contentLines);
+        sink.reset(sink.getChars(), position, rowStarted || !contentLines.isEmpty());
 
-    @NotNull
-    private List<CharSequence> splitLinesToFitBox(@NotNull List<CharSequence> lines, int contentWidth) {
-        List<CharSequence> splitLines = new ArrayList<>();
-        for(CharSequence line : lines) {
-            if(line.length() <= contentWidth) splitLines.add(line);
-            else splitLines.addAll(splitLineEveryNChars(line, contentWidth));
-        }
-        return splitLines;
+        taskData.getTemplate().drawFooter(sink);
     }
 
-    @NotNull
-    private List<CharSequence> generateVerticalSpaces(int verticalMargin) {
-        List<CharSequence> lines = new ArrayList<>();
-        for(int i = 0; i < verticalMargin; i++) lines.add(" "); // one space because of logcat
-        return lines;
+    /** True if given lines should be processed in parallel, i.e. there are enough of them and
+     *  they support fast random access. */
+    private boolean isParallel(@NotNull List<CharSequence> lines) {
+        if(lines.size() < parallelRenderingThreshold) return false;
+        if(lines instanceof ContentLines) return ((ContentLines) lines).isRandomAccess();
+        return lines instanceof RandomAccess;
     }
 
-    /** Draws a top or bottom outer line (i.e. top or bottom border). */
-    @SuppressWarnings("ConstantConditions") // @see drawBox
-    private void drawOuterLine(boolean top,
-                                 @NotNull StringBuilder stringBuilder,
-                                 int lineWidth,
-                                 @NotNull PrettyBoxConfiguration configuration) {
-        stringBuilder.append(getHorizontalSpaces(configuration.getMarginLeft()));
-
-        if(configuration.getBorderLeft())
-            stringBuilder.append(top?
-                    configuration.getBorderLineType().getTopLeftCorner()
-                    : configuration.getBorderLineType().getBottomLeftCorner());
-
-        stringBuilder.append(getNCharacterString(
-                configuration.getBorderLineType().getHorizontalLine(), lineWidth));
+    /** Draws warning messages (if any) and all rows of the box before content. */
+    private static void drawBoxStart(@NotNull BoxSink sink,
+                                     @NotNull FormattingTaskData taskData) throws IOException {
+        if(taskData.isPrintInvalidPerCallConfigMessage())
+            drawTextRow(sink, INVALID_PER_CALL_CONFIGURATION_MESSAGE);
+        if(taskData.isPrintInvalidInstanceLevelConfigMessage())
+            drawTextRow(sink, INVALID_INSTANCE_LEVEL_CONFIGURATION_MESSAGE);
 
-        if(configuration.getBorderRight())
-            stringBuilder.append(top?
-                    configuration.getBorderLineType().getTopRightCorner()
-                    : configuration.getBorderLineType().getBottomRightCorner());
-
-        stringBuilder.append(getHorizontalSpaces(configuration.getMarginRight()));
+        taskData.getTemplate().drawHeader(sink);
     }
 
-    @SuppressWarnings("ConstantConditions") // @see drawBox
-    @NotNull
-    private List<String> generateVerticalPadding(@NotNull StringBuilder stringBuilder,
-                                                 int padding,
-                                                 int lineWidth,
-                                                 @NotNull PrettyBoxConfiguration configuration) {
-        List<String> lines = new ArrayList<>();
-
-        for(int i = 0; i < padding; i++) {
-            stringBuilder.setLength(0);
-
-            stringBuilder
-                    .append(getHorizontalSpaces(configuration.getMarginLeft()));
-
-            if(configuration.getBorderLeft())
-                stringBuilder.append(configuration.getBorderLineType().getVerticalLine());
-
-            stringBuilder
-                    .append(getHorizontalSpaces(lineWidth));
-
-            if(configuration.getBorderRight())
-                stringBuilder.append(configuration.getBorderLineType().getVerticalLine());
+    /** Returns the exact number of chars (or UTF-8 bytes, if utf8 is true) drawBox will output for
+     *  the given task. Mirrors drawBox row by row, but never touches any output.
+     *  @throws OutOfMemoryError if the box is too large to fit into an array */
+    private static int measureBox(@NotNull FormattingTaskData taskData, boolean utf8) {
+        ResolvedBoxConfiguration configuration = taskData.getConfiguration();
+        BoxTemplate template = taskData.getTemplate();
 
-            stringBuilder
-                    .append(getHorizontalSpaces(configuration.getMarginRight()));
+        long size = 0;
+        int rows = 0;
 
-            lines.add(stringBuilder.toString());
+        // warning messages are ASCII, so their UTF-8 length is the same as their length in chars
+        if(taskData.isPrintInvalidPerCallConfigMessage()) {
+            size += INVALID_PER_CALL_CONFIGURATION_MESSAGE.length();
+            rows++;
+        }
+        if(taskData.isPrintInvalidInstanceLevelConfigMessage()) {
+            size += INVALID_INSTANCE_LEVEL_CONFIGURATION_MESSAGE.length();
+            rows++;
         }
 
-        return lines;
-    }
-
-    @SuppressWarnings("ConstantConditions") // @see drawBox
-    private void drawInnerLine(@NotNull StringBuilder stringBuilder,
-                               int lineWidth,
-                               @NotNull LineType lineType,
-                               @NotNull PrettyBoxConfiguration configuration) {
-        stringBuilder
-                .append(getHorizontalSpaces(configuration.getMarginLeft()));
+        if(template.hasHeader()) {
+            size += template.measureHeader(utf8);
+            rows++;
+        }
 
-        if(configuration.getBorderLeft())
-            stringBuilder.append(configuration.getBorderLineType().getRightTIntersection());
+        List<CharSequence> contentLines = taskData.getContentLines();
+        int[] widths = taskData.getContentLineWidths();
+        if(utf8 || widths != null) {
+            int i = 0;
+            for (CharSequence contentLine : contentLines) {
+                LineType lineType = getInnerLineType(contentLine, configuration);
+                if (lineType != null) size += template.measureInnerLine(lineType, utf8);
+                else size += template.measureContentLine(contentLine,
+                        widths == null? contentLine.length() : widths[i], utf8);
+                i++;
+            }
+        } else {
+            // in chars, all content rows and inner lines are equally long, unless some content
+            // is wider or narrower than its length
+            size += (long) contentLines.size() * template.getRowLength();
+        }
+        rows += contentLines.size();
 
-        stringBuilder.append(getNCharacterString(lineType.getHorizontalLine(), lineWidth));
+        if(template.hasFooter()) {
+            size += template.measureFooter(utf8);
+            rows++;
+        }
 
-        if(configuration.getBorderRight())
-            stringBuilder.append(configuration.getBorderLineType().getLeftTIntersection());
+        // rows are separated (not terminated) by newlines, which are always ASCII
+        if(rows > 1) size += (long) (rows - 1) * BoxSink.NEWLINE.length();
 
-        stringBuilder
-                .append(getHorizontalSpaces(configuration.getMarginRight()));
+        if(size > MAX_BOX_SIZE) throw new OutOfMemoryError("Box too large: " + size);
+        return (int) size;
     }
 
-    @SuppressWarnings("ConstantConditions") // @see drawBox
-    private void drawContentLine(@NotNull StringBuilder stringBuilder,
-                                 @NotNull CharSequence line,
-                                 int contentWidth,
-                                 @NotNull PrettyBoxConfiguration configuration) {
-
-        stringBuilder.append(getHorizontalSpaces(configuration.getMarginLeft()));
-
-        if(configuration.getBorderLeft())
-            stringBuilder.append(configuration.getBorderLineType().getVerticalLine());
+    /** Returns the LineType of an inner line, or null if given line is a regular content line. */
+    @Nullable
+    private static LineType getInnerLineType(@NotNull CharSequence contentLine,
+                                             @NotNull ResolvedBoxConfiguration configuration) {
+        if(contentLine instanceof LineWithType)
+            return ((LineWithType) contentLine).getLineType();
+        if(contentLine instanceof LineWithLevel)
+            return configuration.getLineTypeForLevel(((LineWithLevel) contentLine).getLineLevel());
+        return null;
+    }
 
-        stringBuilder
-                .append(getHorizontalSpaces(configuration.getPaddingLeft()))
-                .append(line);
+    /** Splits lines wider than content width into slices according to the configured WrapMode,
+     *  never inside a cluster or an escape sequence (see LineWrapper and AnsiStyle). Returned list
+     *  is owned by context; display widths of its lines are put into context's split line
+     *  widths. Lines with line breaks are split at them as well. Rows of styled lines are
+     *  written into context's styled rows (see RenderContext#styledRow), even if the line fits.
+     *  @param widths display widths of given lines
+     *  @param lineBreaks true if some of the lines contain line breaks
+     *  @param escapes true if some of the lines contain escape sequences */
+    @NotNull
+    private List<CharSequence> splitLinesToFitBox(@NotNull RenderContext context,
+                                                  @NotNull List<CharSequence> lines,
+                                                  @NotNull int[] widths,
+                                                  int contentWidth,
+                                                  boolean lineBreaks,
+                                                  boolean escapes) {
+        List<CharSequence> splitLines = context.splitLines;
+        int[] splitWidths = context.splitLineWidths(lines.size());
+        LineWrapper wrapper = context.lineWrapper;
+        WrapMode wrapMode = context.taskData.getConfiguration().getWrapMode();
+        int index = 0;
+        for(CharSequence line : lines) {
+            int width = widths[index++];
+            boolean fits = width <= contentWidth
+                    && (!lineBreaks || !LineWrapper.hasLineBreak(line));
+            boolean styled = escapes && width != line.length()
+                    && AnsiStyle.containsEscape(line);
+            if(fits && !styled) {
+                if(splitLines.size() == splitWidths.length)
+                    splitWidths = context.splitLineWidths(splitLines.size() + 1);
+                splitWidths[splitLines.size()] = width;
+                splitLines.add(line);
+                continue;
+            }
 
-        int rightPadding = configuration.getPaddingRight() + (contentWidth - line.length());
-        stringBuilder
-                .append(getHorizontalSpaces(rightPadding));
+            int rows = 1;
+            if(!fits) {
+                wrapper.wrap(line, contentWidth, wrapMode);
+                rows = wrapper.getCount();
+            }
+            context.style.setLength(0);
+            for(int row = 0; row < rows; row++) {
+                int start = fits? 0 : wrapper.getStart(row);
+                int end = fits? line.length() : wrapper.getEnd(row);
+                if(splitLines.size() == splitWidths.length)
+                    splitWidths = context.splitLineWidths(splitLines.size() + 1);
+                splitWidths[splitLines.size()] = fits? width : wrapper.getWidth(row);
+                splitLines.add(styled? context.styledRow(line, start, end)
+                        : context.slice(line, start, end));
+            }
+        }
+        return splitLines;
+    }
 
-        if(configuration.getBorderRight())
-            stringBuilder.append(configuration.getBorderLineType().getVerticalLine());
+    /** Returns the display width of given line as it will be drawn, i.e. normalized if enabled. */
+    private static int widthOf(@NotNull CharSequence line,
+                               @NotNull ResolvedBoxConfiguration configuration) {
+        if(!configuration.isNormalizeContent()) return DisplayWidth.of(line);
+        return ContentNormalizer.widthOf(line, configuration.getTabSize());
+    }
 
-        stringBuilder.append(getHorizontalSpaces(configuration.getMarginRight()));
+    /** Draws a row containing only the given text, without any box elements. */
+    private static void drawTextRow(@NotNull BoxSink sink,
+                                    @NotNull CharSequence text) throws IOException {
+        sink.startRow();
+        sink.append(text);
     }
 
 
     // ------------------------------------------------------------------------------------ INTERNAL
 
-    /** Returns the maximum width of the box (exact width if wrap is false) that can be used for
-     *  content. Can return invalid (zero, negative) values if configuration is invalid (e.g. too
-     *  large padding, too small width) */
-    @SuppressWarnings("ConstantConditions") // @see drawBox
-    private int determineMaxContentWidth(@NotNull PrettyBoxConfiguration configuration) {
-        int numSides = (configuration.getBorderLeft()? 1 : 0)
-                + (configuration.getBorderRight()? 1 : 0);
-
-        return configuration.getCharsPerLine()
-                - configuration.getPaddingLeft()
-                - configuration.getPaddingRight()
-                - configuration.getMarginLeft()
-                - configuration.getMarginRight()
-                - numSides;
-    }
-
-    /** Returns true if given configuration is valid. Checks if there is enough space to actually
-     *  print out content inside of the box. */
-    private boolean validateConfiguration(@NotNull PrettyBoxConfiguration configuration) {
-        int maxContentWidth = determineMaxContentWidth(configuration);
-        return maxContentWidth > 0;
-    }
-
-    /** Returns the maximum width (exact width if wrap is false) of horizontal lines used for
-     *  horizontal edges and to split content into sections. Can return invalid (zero, negative)
-     *  values if configuration is invalid (e.g. too large margin, too small width) */
-    @SuppressWarnings("ConstantConditions") // @see drawBox
-    private int determineMaxLineWidth(@NotNull PrettyBoxConfiguration configuration) {
-        int numSides = (configuration.getBorderLeft()? 1 : 0)
-                + (configuration.getBorderRight()? 1 : 0);
-
-        return configuration.getCharsPerLine()
-                - configuration.getMarginLeft()
-                - configuration.getMarginRight()
-                - numSides;
-    }
-
-    @NotNull
-    private List<CharSequence> splitLineEveryNChars(@NotNull CharSequence string, int partitionSize) {
-        List<CharSequence> parts = new ArrayList<>();
-        int len = string.length();
-        if(len <= partitionSize) parts.add(string);
-        else {
-            for (int i = 0; i < len; i += partitionSize)
-                parts.add(string.subSequence(i, Math.min(len, i + partitionSize)));
+    /** Same as {@link #resolveConfiguration(PrettyBoxConfiguration)}, but reuses results for
+     *  per-call configurations equal to ones used before. */
+    @NotNull
+    private ConfigurationSnapshot resolvePerCallConfiguration(
+            @NotNull PrettyBoxConfiguration configuration) {
+        ConfigurationSnapshot resolved = perCallSnapshots.get(configuration);
+        if(resolved == null) {
+            resolved = resolveConfiguration(configuration);
+            if(perCallSnapshots.size() >= MAX_CACHED_PER_CALL_CONFIGURATIONS)
+                evictPerCallSnapshot();
+            perCallSnapshots.put(configuration, resolved);
         }
-
-        return parts;
+        return resolved;
     }
 
-    @NotNull
-    private String getHorizontalSpaces(int length) {
-        return getNCharacterString(' ', length);
+    /** Removes a random cached per-call configuration. Unlike tracking recent use, this keeps
+     *  lookups lock-free, and unlike clearing the whole cache, configurations in use mostly stay
+     *  cached when a client cycles through more of them than fit. */
+    private void evictPerCallSnapshot() {
+        int skip = ThreadLocalRandom.current().nextInt(MAX_CACHED_PER_CALL_CONFIGURATIONS);
+        Iterator<PrettyBoxConfiguration> configurations = perCallSnapshots.keySet().iterator();
+        PrettyBoxConfiguration evicted = null;
+        while(configurations.hasNext() && skip-- >= 0) evicted = configurations.next();
+        if(evicted != null) perCallSnapshots.remove(evicted);
     }
 
+    /** Number of cached per-call configurations, for tests. */
+    int getCachedPerCallConfigurationCount() { return perCallSnapshots.size(); }
+
+    /** Merges given configuration with the default configuration and resolves all values derived
+     *  from it. Returns {@link #INVALID_CONFIGURATION_SNAPSHOT} if the resulting configuration is
+     *  not valid. */
     @NotNull
-    private String getNCharacterString(char character, int length) {
-        StringBuilder outputBuffer = new StringBuilder(length);
-        for (int i = 0; i < length; i++) outputBuffer.append(character);
-        return outputBuffer.toString();
+    private static ConfigurationSnapshot resolveConfiguration(
+            @NotNull PrettyBoxConfiguration configuration) {
+        PrettyBoxConfiguration mergedConfiguration =
+                PrettyBoxConfiguration.Builder.createFromInstance(DEFAULT_CONFIGURATION)
+                        .applyFromInstance(configuration)
+                        .build();
+
+        ResolvedBoxConfiguration resolved = new ResolvedBoxConfiguration(mergedConfiguration);
+        if(!resolved.isValid()) return INVALID_CONFIGURATION_SNAPSHOT;
+
+        return new ConfigurationSnapshot(mergedConfiguration, resolved, false);
     }
 
 }
@@ -0,0 +1,215 @@
+package com.bgpixel.prettyboxformatter;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.TimeZone;
+
+/** Scratch structures used while formatting a single box: task data, header, footer, split and
+ *  normalized lines, line slices, rows, styled rows, line wrapper, sinks and the output array of
+ *  format(). Each
+ *  thread reuses its own context, so formatting into a sink allocates nothing after warm-up
+ *  (except for metadata values, which are new Strings by nature).<br/>
+ *  Retained size is capped: structures grown beyond {@link #MAX_RETAINED_LINES} lines or
+ *  {@link #MAX_RETAINED_CHARS} chars by a huge box are released once the box is drawn. */
+final class RenderContext {
+
+    static final int MAX_RETAINED_LINES = 1024;
+    static final int MAX_RETAINED_CHARS = 64 * 1024;
+
+    @NotNull private static final char[] NO_CHARS = new char[0];
+    @NotNull private static final int[] NO_WIDTHS = new int[0];
+    @NotNull private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
+
+    @NotNull private static final ThreadLocal<RenderContext> CURRENT =
+            new ThreadLocal<RenderContext>() {
+                @Override
+                protected RenderContext initialValue() { return new RenderContext(); }
+            };
+
+    @NotNull final FormattingTaskData taskData = new FormattingTaskData();
+    @NotNull final ArrayList<CharSequence> header = new ArrayList<>();
+    @NotNull final ArrayList<CharSequence> footer = new ArrayList<>();
+    @NotNull final ArrayList<CharSequence> splitLines = new ArrayList<>();
+    @NotNull final ArrayList<CharSequence> normalizedLines = new ArrayList<>();
+    @NotNull final ContentLines contentLines = new ContentLines();
+    @NotNull final LineWrapper lineWrapper = new LineWrapper();
+    /** Rows drawn into a String of their own, e.g. by BoxWriter. */
+    @NotNull final StringBuilder rows = new StringBuilder();
+    /** Style active at the current position of a styled line, see AnsiStyle. */
+    @NotNull final StringBuilder style = new StringBuilder();
+
+    @NotNull private final ArrayList<LineSlice> slices = new ArrayList<>();
+    private int usedSlices = 0;
+    /** Rows of styled lines, with the style applied and reset, one after another. */
+    @NotNull private final StringBuilder styledRows = new StringBuilder();
+
+    /** Display widths of content lines and of split lines, see FormattingTaskData. */
+    @NotNull private int[] lineWidths = NO_WIDTHS;
+    @NotNull private int[] splitLineWidths = NO_WIDTHS;
+
+    @Nullable private char[] chars;
+    @Nullable private CharArrayBoxSink charArraySink;
+    @Nullable private AppendableBoxSink appendableSink;
+    @Nullable private Utf8BoxSink utf8Sink;
+    @Nullable private DateFormat utcDateFormat;
+    @Nullable private Date date;
+
+    /** True while a box is being formatted using this context. */
+    private boolean inUse = false;
+
+    private RenderContext() {}
+
+    /** Returns the current thread's context, or a new one if it's already in use (i.e. a box is
+     *  formatted while formatting another box, e.g. from a client's toString). Must be released
+     *  once the box is drawn. */
+    @NotNull
+    static RenderContext acquire() {
+        RenderContext context = CURRENT.get();
+        if(context.inUse) context = new RenderContext();
+        context.inUse = true;
+        return context;
+    }
+
+    /** Clears all references to client's data and shrinks structures grown too large. */
+    void release() {
+        taskData.reset();
+        contentLines.clear();
+        clear(header);
+        clear(footer);
+        clear(splitLines);
+        clear(normalizedLines);
+
+        for(int i = 0; i < usedSlices; i++) slices.get(i).clear();
+        if(slices.size() > MAX_RETAINED_LINES) {
+            slices.subList(MAX_RETAINED_LINES, slices.size()).clear();
+            slices.trimToSize();
+        }
+        usedSlices = 0;
+
+        clear(rows);
+        clear(style);
+        clear(styledRows);
+        if(lineWidths.length > MAX_RETAINED_LINES) lineWidths = NO_WIDTHS;
+        if(splitLineWidths.length > MAX_RETAINED_LINES) splitLineWidths = NO_WIDTHS;
+        lineWrapper.trim(MAX_RETAINED_LINES);
+
+        if(charArraySink != null) charArraySink.reset(NO_CHARS);
+        if(appendableSink != null) appendableSink.reset(NoOpAppendable.INSTANCE);
+        if(utf8Sink != null) utf8Sink.reset(EMPTY_BUFFER);
+        inUse = false;
+    }
+
+    /** Returns a slice of given line. Valid until the context is released. */
+    @NotNull
+    LineSlice slice(@NotNull CharSequence line, int start, int end) {
+        if(usedSlices == slices.size()) slices.add(new LineSlice());
+        return slices.get(usedSlices++).set(line, start, end);
+    }
+
+    /** Returns given part of a styled line as a row of its own: preceded by the style active at
+     *  its start and followed by a reset if a style is active at its end, see AnsiStyle. The
+     *  context's style must hold the style active at the start of the part (i.e. be cleared for
+     *  the first part of a line) and is updated to the one active at its end. Valid until the
+     *  context is released. */
+    @NotNull
+    CharSequence styledRow(@NotNull CharSequence line, int start, int end) {
+        int rowStart = styledRows.length();
+        boolean styledAtStart = style.length() != 0;
+        styledRows.append(style);
+        AnsiStyle.track(line, start, end, style);
+        if(!styledAtStart && style.length() == 0) {
+            // no style to apply or reset, the part itself will do
+            styledRows.setLength(rowStart);
+            return slice(line, start, end);
+        }
+        styledRows.append(line, start, end);
+        if(style.length() != 0) styledRows.append(AnsiStyle.RESET);
+        return slice(styledRows, rowStart, styledRows.length());
+    }
+
+    /** Returns an array for display widths of content lines, with at least the given length. */
+    @NotNull
+    int[] lineWidths(int minLength) {
+        if(lineWidths.length < minLength) lineWidths = new int[minLength];
+        return lineWidths;
+    }
+
+    /** Returns the array for display widths of split lines, grown to at least the given length
+     *  if needed. Values already in the array are kept. */
+    @NotNull
+    int[] splitLineWidths(int minLength) {
+        if(splitLineWidths.length < minLength)
+            splitLineWidths = Arrays.copyOf(splitLineWidths,
+                    Math.max(minLength, splitLineWidths.length * 2));
+        return splitLineWidths;
+    }
+
+    /** Returns a sink writing into an array with at least the given length. */
+    @NotNull
+    CharArrayBoxSink charArraySink(int minLength) {
+        char[] chars = this.chars;
+        if(chars == null || chars.length < minLength) {
+            chars = new char[minLength];
+            if(minLength <= MAX_RETAINED_CHARS) this.chars = chars;
+        }
+
+        if(charArraySink == null) charArraySink = new CharArrayBoxSink(chars);
+        else charArraySink.reset(chars);
+        return charArraySink;
+    }
+
+    @NotNull
+    AppendableBoxSink appendableSink(@NotNull Appendable target) {
+        if(appendableSink == null) appendableSink = new AppendableBoxSink(target);
+        else appendableSink.reset(target);
+        return appendableSink;
+    }
+
+    @NotNull
+    Utf8BoxSink utf8Sink(@NotNull ByteBuffer target) {
+        if(utf8Sink == null) utf8Sink = new Utf8BoxSink(target);
+        else utf8Sink.reset(target);
+        return utf8Sink;
+    }
+
+    /** Returns current time in ISO 8601 format (UTC, minute precision). */
+    @NotNull
+    String formatCurrentTime() {
+        if(utcDateFormat == null) {
+            utcDateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm'Z'");
+            utcDateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+            date = new Date();
+        }
+        //noinspection ConstantConditions
+        date.setTime(System.currentTimeMillis());
+        return utcDateFormat.format(date);
+    }
+
+    private static void clear(@NotNull StringBuilder stringBuilder) {
+        stringBuilder.setLength(0);
+        if(stringBuilder.capacity() > MAX_RETAINED_CHARS) stringBuilder.trimToSize();
+    }
+
+    private static void clear(@NotNull ArrayList<?> list) {
+        boolean grownTooLarge = list.size() > MAX_RETAINED_LINES;
+        list.clear();
+        if(grownTooLarge) list.trimToSize();
+    }
+
+    /** Placeholder target of a released sink, so it doesn't keep client's Appendable. */
+    private enum NoOpAppendable implements Appendable {
+        INSTANCE;
+
+        @Override public Appendable append(CharSequence csq) { return this; }
+        @Override public Appendable append(CharSequence csq, int start, int end) { return this; }
+        @Override public Appendable append(char c) { return this; }
+    }
+
+}
@@ -0,0 +1,131 @@
+package com.bgpixel.prettyboxformatter;
+
+import com.bgpixel.prettyboxformatter.linetype.LineType;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+
+/** Resolved form of a merged PrettyBoxConfiguration (i.e. one where every setting has a value),
+ *  used while drawing. Holds only primitives and arrays, so drawing never unboxes wrapper objects
+ *  or goes through Lists. Immutable. */
+final class ResolvedBoxConfiguration {
+
+    private static final int FLAG_BORDER_LEFT = 1;
+    private static final int FLAG_BORDER_RIGHT = 1 << 1;
+    private static final int FLAG_BORDER_TOP = 1 << 2;
+    private static final int FLAG_BORDER_BOTTOM = 1 << 3;
+    private static final int FLAG_PREFIX_WITH_NEWLINE = 1 << 4;
+    private static final int FLAG_WRAP_CONTENT = 1 << 5;
+    private static final int FLAG_NORMALIZE_CONTENT = 1 << 6;
+
+    private static final BoxMetaData[] NO_METADATA = new BoxMetaData[0];
+
+    /** Borders, newline prefix, wrap content and normalize content settings packed into a single
+     *  int. */
+    private final int flags;
+
+    private final int charsPerLine;
+    private final int tabSize;
+    private final int paddingLeft;
+    private final int paddingRight;
+    private final int paddingTop;
+    private final int paddingBottom;
+    private final int marginLeft;
+    private final int marginRight;
+    private final int marginTop;
+    private final int marginBottom;
+
+    @NotNull private final WrapMode wrapMode;
+
+    /** Never empty. Element at index 0 is the border LineType. */
+    @NotNull private final LineType[] lineset;
+    @NotNull private final BoxMetaData[] headerMetadata;
+    @NotNull private final BoxMetaData[] footerMetadata;
+
+    /** The maximum width of the box (exact width if wrap is false) that can be used for content.
+     *  Zero or negative if configuration is invalid (e.g. too large padding, too small width). */
+    private final int maxContentWidth;
+
+    /** The maximum width (exact width if wrap is false) of horizontal lines used for horizontal
+     *  edges and to split content into sections. */
+    private final int maxLineWidth;
+
+    // stuff is nullable, but we make sure the default settings provide fallback non-null values
+    @SuppressWarnings("ConstantConditions")
+    ResolvedBoxConfiguration(@NotNull PrettyBoxConfiguration mergedConfiguration) {
+        flags = (mergedConfiguration.getBorderLeft()? FLAG_BORDER_LEFT : 0)
+                | (mergedConfiguration.getBorderRight()? FLAG_BORDER_RIGHT : 0)
+                | (mergedConfiguration.getBorderTop()? FLAG_BORDER_TOP : 0)
+                | (mergedConfiguration.getBorderBottom()? FLAG_BORDER_BOTTOM : 0)
+                | (mergedConfiguration.getPrefixEveryPrintWithNewline()? FLAG_PREFIX_WITH_NEWLINE : 0)
+                | (mergedConfiguration.getWrapContent()? FLAG_WRAP_CONTENT : 0)
+                | (mergedConfiguration.getNormalizeContent()? FLAG_NORMALIZE_CONTENT : 0);
+
+        charsPerLine = mergedConfiguration.getCharsPerLine();
+        wrapMode = mergedConfiguration.getWrapMode();
+        tabSize = mergedConfiguration.getTabSize();
+        paddingLeft = mergedConfiguration.getPaddingLeft();
+        paddingRight = mergedConfiguration.getPaddingRight();
+        paddingTop = mergedConfiguration.getPaddingTop();
+        paddingBottom = mergedConfiguration.getPaddingBottom();
+        marginLeft = mergedConfiguration.getMarginLeft();
+        marginRight = mergedConfiguration.getMarginRight();
+        marginTop = mergedConfiguration.getMarginTop();
+        marginBottom = mergedConfiguration.getMarginBottom();
+
+        List<LineType> linesetList = mergedConfiguration.getLineset();
+        lineset = linesetList == null || linesetList.size() == 0?
+                new LineType[] { mergedConfiguration.getBorderLineType() }
+                : linesetList.toArray(new LineType[0]);
+
+        List<BoxMetaData> header = mergedConfiguration.getHeaderMetadata();
+        headerMetadata = header == null? NO_METADATA : header.toArray(new BoxMetaData[0]);
+        List<BoxMetaData> footer = mergedConfiguration.getFooterMetadata();
+        footerMetadata = footer == null? NO_METADATA : footer.toArray(new BoxMetaData[0]);
+
+        int numSides = (hasBorderLeft()? 1 : 0) + (hasBorderRight()? 1 : 0);
+        maxLineWidth = charsPerLine - marginLeft - marginRight - numSides;
+        maxContentWidth = maxLineWidth - paddingLeft - paddingRight;
+    }
+
+    /** Returns true if there is enough space to actually print out content inside of the box,
+     *  and tab size is valid. */
+    boolean isValid() { return maxContentWidth > 0 && tabSize > 0; }
+
+    boolean hasBorderLeft() { return (flags & FLAG_BORDER_LEFT) != 0; }
+    boolean hasBorderRight() { return (flags & FLAG_BORDER_RIGHT) != 0; }
+    boolean hasBorderTop() { return (flags & FLAG_BORDER_TOP) != 0; }
+    boolean hasBorderBottom() { return (flags & FLAG_BORDER_BOTTOM) != 0; }
+    boolean isPrefixWithNewline() { return (flags & FLAG_PREFIX_WITH_NEWLINE) != 0; }
+    boolean isWrapContent() { return (flags & FLAG_WRAP_CONTENT) != 0; }
+    boolean isNormalizeContent() { return (flags & FLAG_NORMALIZE_CONTENT) != 0; }
+
+    int getCharsPerLine() { return charsPerLine; }
+    @NotNull WrapMode getWrapMode() { return wrapMode; }
+    int getTabSize() { return tabSize; }
+    int getPaddingLeft() { return paddingLeft; }
+    int getPaddingRight() { return paddingRight; }
+    int getPaddingTop() { return paddingTop; }
+    int getPaddingBottom() { return paddingBottom; }
+    int getMarginLeft() { return marginLeft; }
+    int getMarginRight() { return marginRight; }
+    int getMarginTop() { return marginTop; }
+    int getMarginBottom() { return marginBottom; }
+    int getMaxContentWidth() { return maxContentWidth; }
+    int getMaxLineWidth() { return maxLineWidth; }
+
+    @NotNull BoxMetaData[] getHeaderMetadata() { return headerMetadata; }
+    @NotNull BoxMetaData[] getFooterMetadata() { return footerMetadata; }
+
+    /** Returned array must not be modified. */
+    @NotNull LineType[] getLineset() { return lineset; }
+
+    @NotNull LineType getBorderLineType() { return lineset[0]; }
+
+    /** Same as {@link PrettyBoxConfiguration#getLineTypeForLevel(int)} */
+    @NotNull
+    LineType getLineTypeForLevel(int lineLevel) {
+        return lineLevel >= lineset.length? lineset[lineset.length - 1] : lineset[lineLevel];
+    }
+
+}
@@ -0,0 +1,201 @@
+package com.bgpixel.prettyboxformatter;
+
+import com.bgpixel.prettyboxformatter.line.LineWithLevel;
+import com.bgpixel.prettyboxformatter.line.LineWithType;
+import com.bgpixel.prettyboxformatter.linetype.LineType;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/** Holds streamed content lines until the width of the box is known, so they can be drawn in a
+ *  second pass. Lines are kept in memory up to the given number of chars; all lines after that
+ *  are spilled to a temporary file, which is deleted when the buffer is closed, or as soon as
+ *  writing or reading it fails. The file is created by Files.createTempFile, so on POSIX systems
+ *  it's readable only by its owner.<br/>
+ *  Lines are copied when added, so the source may reuse its CharSequence instances. Inner lines
+ *  (LineWithLevel, LineWithType) are kept as they are. */
+final class SpillingLineBuffer implements Closeable {
+
+    /** Markers written in place of line length for inner lines in the spill file. */
+    private static final int LINE_WITH_LEVEL = -1;
+    private static final int LINE_WITH_TYPE = -2;
+
+    /** Thrown by the iterator when reading spilled lines fails. A type of its own, so it's never
+     *  confused with an UncheckedIOException thrown by client's code while the lines are drawn. */
+    @SuppressWarnings("serial") // never serialized
+    static final class SpillReadException extends UncheckedIOException {
+        SpillReadException(@NotNull IOException cause) { super(cause); }
+    }
+
+    private final int memoryLimit;
+    private int bufferedChars = 0;
+
+    @NotNull private final List<CharSequence> memoryLines = new ArrayList<>();
+
+    @Nullable private Path spillFile;
+    @Nullable private DataOutputStream spillOutput;
+    /** LineTypes of spilled LineWithType lines, written to the file as indexes into this list. */
+    @NotNull private final List<LineType> spilledLineTypes = new ArrayList<>();
+
+    @Nullable private DataInputStream spillInput;
+
+    /** @param memoryLimit max number of chars of content kept in memory */
+    SpillingLineBuffer(int memoryLimit) {
+        this.memoryLimit = memoryLimit;
+    }
+
+    void add(@NotNull CharSequence line) throws IOException {
+        if(spillOutput == null && line.length() <= memoryLimit - bufferedChars) {
+            boolean innerLine = line instanceof LineWithLevel || line instanceof LineWithType;
+            memoryLines.add(innerLine? line : line.toString());
+            bufferedChars += line.length();
+            return;
+        }
+
+        try {
+            DataOutputStream output = spillOutput;
+            if(output == null) {
+                Path file = Files.createTempFile("prettybox", ".lines");
+                spillFile = file;
+                output = spillOutput = new DataOutputStream(
+                        new BufferedOutputStream(Files.newOutputStream(file)));
+            }
+
+            if(line instanceof LineWithLevel) {
+                output.writeInt(LINE_WITH_LEVEL);
+                output.writeInt(((LineWithLevel) line).getLineLevel());
+            } else if(line instanceof LineWithType) {
+                output.writeInt(LINE_WITH_TYPE);
+                output.writeInt(indexOfLineType(((LineWithType) line).getLineType()));
+            } else {
+                output.writeInt(line.length());
+                for(int i = 0; i < line.length(); i++) output.writeChar(line.charAt(i));
+            }
+        } catch (IOException e) {
+            discard(e);
+            throw e;
+        }
+    }
+
+    /** True if some of the lines didn't fit into memory and were written to a file. */
+    boolean isSpilled() { return spillFile != null; }
+
+    /** The spill file, until it's deleted. */
+    @Nullable Path getSpillFile() { return spillFile; }
+
+    /** Returns an iterator over all added lines. Can be called only once, after all lines have
+     *  been added. Reading spilled lines may throw SpillReadException. */
+    @NotNull
+    Iterator<CharSequence> iterator() throws IOException {
+        final Iterator<CharSequence> memoryIterator = memoryLines.iterator();
+        if(spillOutput != null) {
+            try {
+                spillOutput.close();
+                spillOutput = null;
+                //noinspection ConstantConditions
+                spillInput = new DataInputStream(
+                        new BufferedInputStream(Files.newInputStream(spillFile)));
+            } catch (IOException e) {
+                discard(e);
+                throw e;
+            }
+        }
+
+        return new Iterator<CharSequence>() {
+            @Nullable private CharSequence next;
+
+            @Override
+            public boolean hasNext() {
+                if(next != null) return true;
+                if(memoryIterator.hasNext()) next = memoryIterator.next();
+                else if(spillInput != null) next = readSpilledLine(spillInput);
+                return next != null;
+            }
+
+            @Override
+            public CharSequence next() {
+                if(!hasNext()) throw new NoSuchElementException();
+                CharSequence line = next;
+                next = null;
+                return line;
+            }
+        };
+    }
+
+    /** Closes and deletes the spill file, if any. */
+    @Override
+    public void close() throws IOException {
+        try {
+            if(spillOutput != null) spillOutput.close();
+            if(spillInput != null) spillInput.close();
+        } finally {
+            spillOutput = null;
+            spillInput = null;
+            Path file = spillFile;
+            spillFile = null;
+            if(file != null) {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException e) {
+                    file.toFile().deleteOnExit();
+                }
+            }
+        }
+    }
+
+    /** Returns the next spilled line, or null if there are no more lines. */
+    @Nullable
+    private CharSequence readSpilledLine(@NotNull DataInputStream input) {
+        try {
+            int length;
+            try {
+                length = input.readInt();
+            } catch (EOFException e) {
+                return null;
+            }
+
+            if(length == LINE_WITH_LEVEL) return new LineWithLevel(input.readInt());
+            if(length == LINE_WITH_TYPE)
+                return new LineWithType(spilledLineTypes.get(input.readInt()));
+
+            char[] chars = new char[length];
+            for(int i = 0; i < length; i++) chars[i] = input.readChar();
+            return new String(chars);
+        } catch (IOException e) {
+            discard(e);
+            throw new SpillReadException(e);
+        }
+    }
+
+    /** Closes and deletes the spill file after given failure. Exceptions thrown while closing are
+     *  added to it as suppressed. */
+    private void discard(@NotNull IOException failure) {
+        try {
+            close();
+        } catch (IOException e) {
+            failure.addSuppressed(e);
+        }
+    }
+
+    private int indexOfLineType(@NotNull LineType lineType) {
+        for(int i = 0; i < spilledLineTypes.size(); i++)
+            if(spilledLineTypes.get(i) == lineType) return i;
+        spilledLineTypes.add(lineType);
+        return spilledLineTypes.size() - 1;
+    }
+
+}
@@ -0,0 +1,128 @@
+package com.bgpixel.prettyboxformatter;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/** BoxSink that outputs UTF-8 encoded bytes directly into a ByteBuffer. Box template pieces are
+ *  copied from their pre-encoded form, so only the content gets encoded with each printout.<br/>
+ *  If the buffer is too small, a BufferOverflowException is thrown by the buffer. */
+class Utf8BoxSink extends BoxSink {
+
+    private static final byte[] NEWLINE_UTF8 = NEWLINE.getBytes(StandardCharsets.UTF_8);
+
+    /** Replacement for unpaired surrogates, same as used by String.getBytes */
+    private static final byte REPLACEMENT = '?';
+
+    @NotNull private ByteBuffer target;
+
+    Utf8BoxSink(@NotNull ByteBuffer target) {
+        this.target = target;
+    }
+
+    /** Makes the sink draw a new box into given ByteBuffer. */
+    void reset(@NotNull ByteBuffer target) {
+        this.target = target;
+        resetRows(false);
+    }
+
+    @Override
+    void appendNewline() {
+        target.put(NEWLINE_UTF8);
+    }
+
+    @NotNull @Override
+    BoxSink append(@NotNull EncodedString encodedString) {
+        target.put(encodedString.getUtf8());
+        return this;
+    }
+
+    @NotNull @Override
+    BoxSink append(@NotNull EncodedString encodedString, int start, int end) {
+        int bytesPerChar = encodedString.getBytesPerChar();
+        if(bytesPerChar > 0)
+            target.put(encodedString.getUtf8(), start * bytesPerChar, (end - start) * bytesPerChar);
+        else
+            encode(encodedString.getText(), start, end, target);
+        return this;
+    }
+
+    @NotNull @Override
+    BoxSink append(@NotNull CharSequence charSequence) {
+        encode(charSequence, 0, charSequence.length(), target);
+        return this;
+    }
+
+    @NotNull @Override
+    BoxSink append(@NotNull CharSequence charSequence, int start, int end) {
+        encode(charSequence, start, end, target);
+        return this;
+    }
+
+    /** Returns the number of bytes {@link #encode} will output for given chars. */
+    static int encodedLength(@NotNull CharSequence chars, int start, int end) {
+        if(chars instanceof LineSlice) {
+            LineSlice slice = (LineSlice) chars;
+            return encodedLength(slice.getSource(),
+                    slice.getStart() + start, slice.getStart() + end);
+        }
+
+        int length = end - start;
+        for(int i = start; i < end; i++) {
+            char c = chars.charAt(i);
+            if(c < 0x80) continue;
+
+            if(c < 0x800) {
+                length += 1;
+            } else if(Character.isSurrogate(c)) {
+                if(Character.isHighSurrogate(c) && i + 1 < end
+                        && Character.isLowSurrogate(chars.charAt(i + 1))) {
+                    length += 2; // 4 bytes for 2 chars
+                    i++;
+                }
+                // otherwise replaced by a single byte
+            } else {
+                length += 2;
+            }
+        }
+        return length;
+    }
+
+    /** Encodes given chars as UTF-8 into the buffer. Faster than going through a CharsetEncoder
+     *  for the short sequences that make up box content. Slices are encoded straight from their
+     *  source line. */
+    static void encode(@NotNull CharSequence chars, int start, int end, @NotNull ByteBuffer target) {
+        if(chars instanceof LineSlice) {
+            LineSlice slice = (LineSlice) chars;
+            encode(slice.getSource(), slice.getStart() + start, slice.getStart() + end, target);
+            return;
+        }
+
+        for(int i = start; i < end; i++) {
+            char c = chars.charAt(i);
+            if(c < 0x80) {
+                target.put((byte) c);
+            } else if(c < 0x800) {
+                target.put((byte) (0xC0 | (c >> 6)));
+                target.put((byte) (0x80 | (c & 0x3F)));
+            } else if(Character.isSurrogate(c)) {
+                if(Character.isHighSurrogate(c) && i + 1 < end
+                        && Character.isLowSurrogate(chars.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, chars.charAt(++i));
+                    target.put((byte) (0xF0 | (codePoint >> 18)));
+                    target.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                    target.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                    target.put((byte) (0x80 | (codePoint & 0x3F)));
+                } else {
+                    target.put(REPLACEMENT);
+                }
+            } else {
+                target.put((byte) (0xE0 | (c >> 12)));
+                target.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                target.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+}
@@ -0,0 +1,17 @@
+package com.bgpixel.prettyboxformatter;
+
+/** How lines wider than the box are split into rows. */
+public enum WrapMode {
+
+    /** Split lines at exactly the width of the box, even in the middle of a word. */
+    CHARACTER,
+
+    /** Break lines at spaces, putting as many words on each row as fit. Words wider than the box
+     *  are split like with CHARACTER. */
+    WORD,
+
+    /** Break lines at spaces like WORD, but choose the breaks so that rows are as even as possible
+     *  (minimum raggedness). Slower than WORD for very long lines. */
+    OPTIMAL
+
+}
@@ -1,14 +1,37 @@
 package com.bgpixel.prettyboxformatter;
 
+import com.bgpixel.prettyboxformatter.data.BlockingBoxableObject;
 import com.bgpixel.prettyboxformatter.data.SimpleBoxableObject;
+import com.bgpixel.prettyboxformatter.line.Lineset;
+import com.bgpixel.prettyboxformatter.line.LineWithLevel;
 import com.bgpixel.prettyboxformatter.line.LineWithType;
 import com.bgpixel.prettyboxformatter.linetype.LineType;
+import org.jetbrains.annotations.NotNull;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class PrettyBoxFormatterTest {
 
@@ -91,4 +114,982 @@ public class PrettyBoxFormatterTest {
         System.out.println(result);
     }
 
+    @Test
+    public void formatToWritesSameBoxAsFormat() throws IOException {
+        PrettyBoxConfiguration configuration = new PrettyBoxConfiguration.Builder()
+                .setHorizontalPadding(5)
+                .setVerticalPadding(1)
+                .setVerticalMargin(1)
+                .build();
+
+        StringWriter writer = new StringWriter();
+        pbFormatter.formatTo(writer, "Title", SIMPLE_BOXABLE_OBJECT, configuration);
+
+        Assert.assertEquals(
+                pbFormatter.format("Title", SIMPLE_BOXABLE_OBJECT, configuration),
+                writer.toString());
+    }
+
+    @Test
+    public void formatToByteBufferWritesUtf8() {
+        List<CharSequence> lines = new ArrayList<>();
+        lines.add("Plain ASCII");
+        lines.add("Ćirilica: Ђорђе, emoji: \uD83D\uDE00");
+        lines.add(new LineWithType(LineType.LINE_DOUBLE));
+        lines.add("Last line");
+        PrettyBoxConfiguration configuration = new PrettyBoxConfiguration.Builder()
+                .setBorderLineType(LineType.LINE_THICK)
+                .setPadding(1)
+                .build();
+        byte[] expected = pbFormatter.format("Title", lines, configuration)
+                .getBytes(StandardCharsets.UTF_8);
+
+        ByteBuffer heapBuffer = ByteBuffer.allocate(expected.length + 10);
+        heapBuffer.position(10);
+        pbFormatter.formatTo(heapBuffer, "Title", lines, configuration);
+        Assert.assertEquals(expected.length + 10, heapBuffer.position());
+        Assert.assertArrayEquals(expected,
+                Arrays.copyOfRange(heapBuffer.array(), 10, heapBuffer.position()));
+
+        ByteBuffer directBuffer = ByteBuffer.allocateDirect(expected.length);
+        pbFormatter.formatTo(directBuffer, "Title", lines, configuration);
+        byte[] actual = new byte[expected.length];
+        directBuffer.flip();
+        directBuffer.get(actual);
+        Assert.assertArrayEquals(expected, actual);
+    }
+
+    private static final String titleHeaderAndFooterOnImmutableListExpectedResult =
+            "┌────────────┐" + NLN +
+            "│ Title      │" + NLN +
+            "│ ArrayList  │" + NLN +
+            "├────────────┤" + NLN +
+            "│ First line │" + NLN +
+            "├────────────┤" + NLN +
+            "│ ArrayList  │" + NLN +
+            "└────────────┘";
+    @Test
+    public void titleHeaderAndFooterOnImmutableList() {
+        List<CharSequence> lines = Arrays.asList((CharSequence) "First line"); // fixed-size list
+
+        String result = pbFormatter.format("Title", lines,
+                new PrettyBoxConfiguration.Builder()
+                        .setHeaderMetadata(Collections.singletonList(BoxMetaData.SHORT_CLASS_NAME))
+                        .setFooterMetadata(Collections.singletonList(BoxMetaData.SHORT_CLASS_NAME))
+                        .build());
+
+        Assert.assertEquals(titleHeaderAndFooterOnImmutableListExpectedResult, result);
+        Assert.assertEquals(1, lines.size());
+    }
+
+    @Test
+    public void sharedFormatterNeverMixesConfigurations() throws InterruptedException {
+        final PrettyBoxConfiguration narrow = new PrettyBoxConfiguration.Builder()
+                .setCharsPerLine(30).setWrapContent(false).build();
+        final PrettyBoxConfiguration wide = new PrettyBoxConfiguration.Builder()
+                .setCharsPerLine(60).setWrapContent(false).setHorizontalMargin(3).build();
+        final String narrowResult = new PrettyBoxFormatter(narrow).format(SIMPLE_BOXABLE_OBJECT);
+        final String wideResult = new PrettyBoxFormatter(wide).format(SIMPLE_BOXABLE_OBJECT);
+        final List<String> unexpectedResults =
+                Collections.synchronizedList(new ArrayList<String>());
+
+        Thread writer = new Thread(() -> {
+            for (int i = 0; i < 2000; i++) pbFormatter.setConfiguration(i % 2 == 0? narrow : wide);
+        });
+        Thread reader = new Thread(() -> {
+            for (int i = 0; i < 2000; i++) {
+                String result = pbFormatter.format(SIMPLE_BOXABLE_OBJECT);
+                if (!result.equals(narrowResult) && !result.equals(wideResult))
+                    unexpectedResults.add(result);
+            }
+        });
+        pbFormatter.setConfiguration(narrow);
+        writer.start();
+        reader.start();
+        writer.join();
+        reader.join();
+
+        Assert.assertEquals(Collections.<String>emptyList(), unexpectedResults);
+    }
+
+    @Test
+    public void configurationEquality() {
+        List<LineType> lineset = Lineset.getAsciiLineset();
+        PrettyBoxConfiguration.Builder builder = new PrettyBoxConfiguration.Builder()
+                .setCharsPerLine(40)
+                .setPadding(2)
+                .setLineset(lineset);
+        PrettyBoxConfiguration first = builder.build();
+        PrettyBoxConfiguration second = builder.build();
+
+        Assert.assertEquals(first, second);
+        Assert.assertEquals(first.hashCode(), second.hashCode());
+
+        // Built instances must not change when the builder or the given list change
+        builder.setBorderLineType(LineType.LINE);
+        lineset.clear();
+        Assert.assertEquals(first, second);
+        Assert.assertEquals(LineType.STAR, first.getBorderLineType());
+        Assert.assertNotEquals(first, builder.build());
+
+        // Equal per-call configurations give equal results, whether resolved or cached
+        Assert.assertEquals(pbFormatter.format(SIMPLE_BOXABLE_OBJECT, first),
+                pbFormatter.format(SIMPLE_BOXABLE_OBJECT, second));
+    }
+
+    @Test
+    public void perCallConfigurationCacheEvictsSingleEntries() {
+        for (int charsPerLine = 40; charsPerLine < 80; charsPerLine++) {
+            PrettyBoxConfiguration configuration = new PrettyBoxConfiguration.Builder()
+                    .setCharsPerLine(charsPerLine)
+                    .build();
+            String box = pbFormatter.format(SIMPLE_BOXABLE_OBJECT, configuration);
+            Assert.assertEquals(box, new PrettyBoxFormatter()
+                    .format(SIMPLE_BOXABLE_OBJECT, configuration));
+        }
+        Assert.assertEquals(32, pbFormatter.getCachedPerCallConfigurationCount());
+    }
+
+    @Test
+    public void boxWiderThanCachedRuns() {
+        int charsPerLine = CharRuns.MAX_CACHED_LENGTH + 100;
+        String result = pbFormatter.format(SIMPLE_BOXABLE_OBJECT,
+                new PrettyBoxConfiguration.Builder()
+                        .setCharsPerLine(charsPerLine)
+                        .setWrapContent(false)
+                        .build());
+
+        String[] rows = result.split(NLN);
+        Assert.assertEquals(5, rows.length);
+        for (String row : rows) Assert.assertEquals(charsPerLine, row.length());
+    }
+
+    @Test
+    public void formatToTooSmallByteBufferLeavesItUnchanged() {
+        byte[] expected = pbFormatter.format(SIMPLE_BOXABLE_OBJECT).getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(expected.length + 1);
+        buffer.position(2);
+
+        try {
+            pbFormatter.formatTo(buffer, SIMPLE_BOXABLE_OBJECT);
+            Assert.fail("Expected BufferOverflowException");
+        } catch (BufferOverflowException e) {
+            Assert.assertEquals(2, buffer.position());
+            Assert.assertArrayEquals(new byte[buffer.capacity()], buffer.array());
+        }
+    }
+
+    @Test
+    public void boxFormattedWhileFormattingAnotherBox() {
+        final String expectedInner = pbFormatter.format(SIMPLE_BOXABLE_OBJECT);
+        final String[] actualInner = new String[1];
+
+        // Formats another box the first time its length is checked
+        CharSequence line = new CharSequence() {
+            @Override public int length() {
+                if(actualInner[0] == null)
+                    actualInner[0] = pbFormatter.format(SIMPLE_BOXABLE_OBJECT);
+                return toString().length();
+            }
+            @Override public char charAt(int index) { return toString().charAt(index); }
+            @Override public CharSequence subSequence(int start, int end) {
+                return toString().subSequence(start, end);
+            }
+            @Override public String toString() { return "Outer line that is too long"; }
+        };
+
+        String outer = pbFormatter.format(Collections.singletonList(line),
+                new PrettyBoxConfiguration.Builder().setCharsPerLine(20).build());
+        Assert.assertEquals(expectedInner, actualInner[0]);
+        Assert.assertEquals(
+                "┌──────────────────┐" + NLN +
+                "│ Outer line that  │" + NLN +
+                "│ is too long      │" + NLN +
+                "└──────────────────┘", outer);
+        Assert.assertEquals(expectedInner, pbFormatter.format(SIMPLE_BOXABLE_OBJECT));
+    }
+
+    @Test
+    public void streamToWritesRowsAsContentArrives() throws IOException {
+        final PrettyBoxConfiguration configuration = new PrettyBoxConfiguration.Builder()
+                .setCharsPerLine(30)
+                .setWrapContent(false)
+                .build();
+        final List<CharSequence> lines = Arrays.<CharSequence>asList("First line",
+                "A line that is too long to fit into a single row", "Last line");
+        final StringBuilder target = new StringBuilder();
+        final List<Integer> writtenBeforeEachLine = new ArrayList<>();
+
+        Iterator<CharSequence> iterator = new Iterator<CharSequence>() {
+            private int next = 0;
+            @Override public boolean hasNext() { return next < lines.size(); }
+            @Override public CharSequence next() {
+                writtenBeforeEachLine.add(target.length());
+                return lines.get(next++);
+            }
+        };
+        pbFormatter.streamTo(target, "Title", iterator, configuration);
+
+        Assert.assertEquals(pbFormatter.format("Title", lines, configuration), target.toString());
+        // top border, title and the inner line are written before content is read
+        Assert.assertTrue(writtenBeforeEachLine.get(0) > 0);
+        Assert.assertTrue(writtenBeforeEachLine.get(1) > writtenBeforeEachLine.get(0));
+        Assert.assertTrue(writtenBeforeEachLine.get(2) > writtenBeforeEachLine.get(1));
+
+        // with wrapContent, content is read first, but the result is the same as format
+        StringBuilder wrapped = new StringBuilder();
+        pbFormatter.streamTo(wrapped, lines.stream());
+        Assert.assertEquals(pbFormatter.format(lines), wrapped.toString());
+    }
+
+    @Test
+    public void streamToWithWrapContentSpillsLargeContent() throws IOException {
+        List<CharSequence> lines = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            lines.add("Line number " + i);
+            if(i % 10 == 0) lines.add(new LineWithType(LineType.LINE_DOUBLE));
+            if(i % 10 == 5) lines.add(LineWithLevel.LEVEL_1);
+        }
+        lines.add("The longest line of them all");
+        String expected = pbFormatter.format("Title", lines);
+
+        pbFormatter.setStreamingBufferLimit(40);
+        StringBuilder spilled = new StringBuilder();
+        pbFormatter.streamTo(spilled, "Title", lines.iterator());
+        Assert.assertEquals(expected, spilled.toString());
+
+        StringBuilder replayed = new StringBuilder();
+        pbFormatter.streamTo(replayed, "Title", lines);
+        Assert.assertEquals(expected, replayed.toString());
+
+        SpillingLineBuffer buffer = new SpillingLineBuffer(40);
+        for (CharSequence line : lines) buffer.add(line);
+        Assert.assertTrue(buffer.isSpilled());
+        buffer.close();
+    }
+
+    @Test
+    public void boxWriterAcceptsLinesFromManyThreads() throws Exception {
+        final int numThreads = 32;
+        final int linesPerThread = 200;
+        StringWriter target = new StringWriter();
+        final BoxWriter boxWriter = pbFormatter.openBox(target, "Progress",
+                new PrettyBoxConfiguration.Builder().setCharsPerLine(30).build());
+
+        Thread[] threads = new Thread[numThreads];
+        for (int t = 0; t < numThreads; t++) {
+            final int thread = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < linesPerThread; i++)
+                            boxWriter.appendLine("T" + thread + " L" + i);
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) thread.join();
+        boxWriter.appendSeparator(LineWithLevel.LEVEL_1);
+        boxWriter.appendLine("Done");
+        boxWriter.close();
+
+        String[] rows = target.toString().split(NLN);
+        Assert.assertEquals(numThreads * linesPerThread + 6, rows.length);
+        Assert.assertEquals("┌────────────────────────────┐", rows[0]);
+        Assert.assertEquals("│ Progress                   │", rows[1]);
+        Assert.assertEquals("│ Done                       │", rows[rows.length - 2]);
+        Assert.assertEquals("└────────────────────────────┘", rows[rows.length - 1]);
+
+        // every line is there, in its own row, and lines of each thread keep their order
+        int[] nextLine = new int[numThreads];
+        for (int r = 3; r < rows.length - 3; r++) {
+            Assert.assertEquals(30, rows[r].length());
+            String[] parts = rows[r].substring(2, 28).trim().split(" L");
+            int thread = Integer.parseInt(parts[0].substring(1));
+            Assert.assertEquals(nextLine[thread]++, Integer.parseInt(parts[1]));
+        }
+        for (int count : nextLine) Assert.assertEquals(linesPerThread, count);
+
+        try {
+            boxWriter.appendLine("Too late");
+            Assert.fail("Expected IllegalStateException");
+        } catch (IllegalStateException ignored) {}
+    }
+
+    @Test
+    public void boxPrinterNeverSplitsBoxes() throws Exception {
+        final int numThreads = 16;
+        final int boxesPerThread = 100;
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final PrintStream printStream = new PrintStream(output, false, "UTF-8");
+        final BoxPrinter boxPrinter = new BoxPrinter(pbFormatter, printStream);
+
+        Thread[] threads = new Thread[numThreads];
+        for (int t = 0; t < numThreads; t++) {
+            final int thread = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < boxesPerThread; i++) {
+                            List<CharSequence> lines = new ArrayList<>();
+                            lines.add("Thread " + thread);
+                            lines.add("Box " + i);
+                            boxPrinter.print(lines);
+                            printStream.println("between boxes");
+                        }
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) thread.join();
+
+        String[] rows = output.toString("UTF-8").split(NLN);
+        Assert.assertEquals(numThreads * boxesPerThread * 5, rows.length);
+        int boxes = 0;
+        for (int r = 0; r < rows.length; r++) {
+            if(rows[r].equals("between boxes")) continue;
+            Assert.assertTrue(rows[r].startsWith("┌"));
+            Assert.assertTrue(rows[r + 1].startsWith("│ Thread "));
+            Assert.assertTrue(rows[r + 2].startsWith("│ Box "));
+            Assert.assertTrue(rows[r + 3].startsWith("└"));
+            r += 3;
+            boxes++;
+        }
+        Assert.assertEquals(numThreads * boxesPerThread, boxes);
+    }
+
+    @Test
+    public void parallelRenderingGivesSameResult() {
+        List<CharSequence> lines = new ArrayList<>();
+        for (int i = 0; i < 3 * ParallelRendering.MAX_LINES_PER_TASK + 17; i++) {
+            lines.add("Row " + i + (i % 97 == 0? " long enough to be split into two rows" : ""));
+            if(i % 1000 == 0) lines.add(LineWithLevel.LEVEL_1);
+        }
+        PrettyBoxConfiguration noBorders = new PrettyBoxConfiguration.Builder()
+                .setBorders(false)
+                .setCharsPerLine(40)
+                .build();
+
+        String sequential = pbFormatter.format("Title", lines);
+        String sequentialNoBorders = pbFormatter.format(lines, noBorders);
+        pbFormatter.setParallelRenderingThreshold(1);
+        Assert.assertEquals(sequential, pbFormatter.format("Title", lines));
+        Assert.assertEquals(sequentialNoBorders, pbFormatter.format(lines, noBorders));
+    }
+
+    @Test
+    public void formatAllWritesBoxesInInputOrder() throws IOException {
+        List<SimpleBoxableObject> boxables = new ArrayList<>();
+        for (int i = 0; i < 1000; i++)
+            boxables.add(new SimpleBoxableObject(i, "Seller " + i, i % 2 == 0));
+        PrettyBoxConfiguration configuration = new PrettyBoxConfiguration.Builder()
+                .setCharsPerLine(30)
+                .build();
+
+        StringBuilder expected = new StringBuilder();
+        StringBuilder expectedWithConfiguration = new StringBuilder();
+        for (SimpleBoxableObject boxable : boxables) {
+            if(expected.length() != 0) {
+                expected.append(NLN);
+                expectedWithConfiguration.append(NLN);
+            }
+            expected.append(pbFormatter.format(boxable));
+            expectedWithConfiguration.append(pbFormatter.format(boxable, configuration));
+        }
+
+        StringBuilder actual = new StringBuilder();
+        pbFormatter.formatAll(actual, boxables);
+        Assert.assertEquals(expected.toString(), actual.toString());
+
+        StringWriter actualWithConfiguration = new StringWriter();
+        pbFormatter.formatAll(actualWithConfiguration, boxables.stream(), configuration);
+        Assert.assertEquals(expectedWithConfiguration.toString(), actualWithConfiguration.toString());
+    }
+
+    @Test
+    public void formatAsyncRunsOnGivenExecutor() throws Exception {
+        final Thread callingThread = Thread.currentThread();
+        final List<Thread> toStringLinesThreads =
+                Collections.synchronizedList(new ArrayList<Thread>());
+        PrettyBoxable prettyBoxable = new PrettyBoxable() {
+            @Override
+            public List<CharSequence> toStringLines() {
+                toStringLinesThreads.add(Thread.currentThread());
+                return SIMPLE_BOXABLE_OBJECT.toStringLines();
+            }
+        };
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Assert.assertEquals(pbFormatter.format(SIMPLE_BOXABLE_OBJECT),
+                    pbFormatter.formatAsync(prettyBoxable, executor).get());
+            Assert.assertEquals(pbFormatter.format(SIMPLE_BOXABLE_OBJECT),
+                    pbFormatter.formatAsync(prettyBoxable).get());
+
+            PrettyBoxConfiguration configuration = new PrettyBoxConfiguration.Builder()
+                    .setCharsPerLine(20)
+                    .build();
+            List<CharSequence> lines = SIMPLE_BOXABLE_OBJECT.toStringLines();
+            String box = pbFormatter.format(lines, configuration);
+            Assert.assertEquals(box, pbFormatter.formatAsync(prettyBoxable, configuration).get());
+            Assert.assertEquals(box, pbFormatter.formatAsync(lines, configuration).get());
+            StringWriter written = new StringWriter();
+            pbFormatter.formatToAsync(written, prettyBoxable, configuration).get();
+            pbFormatter.formatToAsync(written, lines, configuration).get();
+            Assert.assertEquals(box + box, written.toString());
+            Assert.assertFalse(toStringLinesThreads.contains(callingThread));
+
+            Appendable failingTarget = new StringWriter() {
+                @Override
+                public StringWriter append(CharSequence csq) {
+                    throw new IllegalStateException("Target failed");
+                }
+            };
+            try {
+                pbFormatter.formatToAsync(failingTarget, prettyBoxable, executor).get();
+                Assert.fail("Expected ExecutionException");
+            } catch (ExecutionException e) {
+                Assert.assertEquals("Target failed", e.getCause().getMessage());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void boxPipelineWritesAllPublishedBoxesInOrder() throws Exception {
+        final int boxesPerProducer = 500;
+        StringWriter target = new StringWriter();
+        final BoxPipeline pipeline =
+                new BoxPipeline(pbFormatter, target, 8, BoxPipeline.OverflowPolicy.BLOCK);
+
+        Thread[] producers = new Thread[2];
+        for (int p = 0; p < producers.length; p++) {
+            final String producer = "p" + p;
+            producers[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < boxesPerProducer; i++)
+                        pipeline.publish(Collections.<CharSequence>singletonList(producer + " " + i));
+                }
+            });
+            producers[p].start();
+        }
+        for (Thread producer : producers) producer.join();
+        pipeline.close();
+        Assert.assertEquals(0, pipeline.getDroppedCount());
+
+        int[] nextBox = new int[producers.length];
+        for (String row : target.toString().split(NLN)) {
+            if(!row.startsWith("│")) continue;
+            String[] content = row.substring(2, row.length() - 2).trim().split(" ");
+            int producer = Integer.parseInt(content[0].substring(1));
+            Assert.assertEquals(nextBox[producer]++, Integer.parseInt(content[1]));
+        }
+        for (int boxes : nextBox) Assert.assertEquals(boxesPerProducer, boxes);
+
+        StringWriter droppingTarget = new StringWriter();
+        BoxPipeline droppingPipeline = new BoxPipeline(pbFormatter, droppingTarget, 2,
+                BoxPipeline.OverflowPolicy.DROP_NEWEST);
+        int published = 0;
+        for (int i = 0; i < boxesPerProducer; i++)
+            if(droppingPipeline.publish(SIMPLE_BOXABLE_OBJECT)) published++;
+        droppingPipeline.close();
+        Assert.assertEquals(boxesPerProducer - published, droppingPipeline.getDroppedCount());
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < published; i++)
+            expected.append(pbFormatter.format(SIMPLE_BOXABLE_OBJECT)).append(NLN);
+        Assert.assertEquals(expected.toString(), droppingTarget.toString());
+
+        try {
+            droppingPipeline.publish(SIMPLE_BOXABLE_OBJECT);
+            Assert.fail("Expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void boxPipelineRethrowsWriteFailureToSynchronousPublisher() throws Exception {
+        Appendable failingTarget = new Appendable() {
+            @Override
+            public Appendable append(CharSequence csq) throws IOException {
+                throw new IOException("broken target");
+            }
+
+            @Override
+            public Appendable append(CharSequence csq, int start, int end) throws IOException {
+                throw new IOException("broken target");
+            }
+
+            @Override
+            public Appendable append(char c) throws IOException {
+                throw new IOException("broken target");
+            }
+        };
+        BlockingBoxableObject blocking = new BlockingBoxableObject("blocking");
+        BoxPipeline pipeline = new BoxPipeline(pbFormatter, failingTarget, 2,
+                BoxPipeline.OverflowPolicy.RENDER_SYNCHRONOUSLY);
+
+        pipeline.publish(blocking);
+        blocking.awaitRendering();
+        Assert.assertTrue(pipeline.publish(SIMPLE_BOXABLE_OBJECT));
+        Assert.assertTrue(pipeline.publish(SIMPLE_BOXABLE_OBJECT));
+        Assert.assertEquals(0, pipeline.getDelayedCount());
+        try {
+            pipeline.publish(SIMPLE_BOXABLE_OBJECT);
+            Assert.fail("Expected UncheckedIOException");
+        } catch (UncheckedIOException e) {
+            Assert.assertEquals("broken target", e.getCause().getMessage());
+        }
+        Assert.assertEquals(1, pipeline.getDelayedCount());
+
+        blocking.release();
+        try {
+            pipeline.close();
+            Assert.fail("Expected IOException");
+        } catch (IOException e) {
+            Assert.assertEquals("broken target", e.getMessage());
+        }
+    }
+
+    @Test
+    public void boxPipelineDropsOldestBoxesAndSkipsFailingOnes() throws Exception {
+        StringWriter target = new StringWriter();
+        BlockingBoxableObject blocking = new BlockingBoxableObject("A");
+        PrettyBoxable failing = new PrettyBoxable() {
+            @NotNull @Override
+            public List<CharSequence> toStringLines() {
+                throw new IllegalStateException("broken content");
+            }
+        };
+        BoxPipeline pipeline =
+                new BoxPipeline(pbFormatter, target, 2, BoxPipeline.OverflowPolicy.DROP_OLDEST);
+
+        pipeline.publish(blocking);
+        blocking.awaitRendering();
+        Assert.assertTrue(pipeline.publish(Collections.<CharSequence>singletonList("B")));
+        Assert.assertTrue(pipeline.publish(Collections.<CharSequence>singletonList("C")));
+        Assert.assertTrue(pipeline.publish(failing));
+        Assert.assertTrue(pipeline.publish(Collections.<CharSequence>singletonList("D")));
+        Assert.assertEquals(2, pipeline.getDroppedCount());
+
+        blocking.release();
+        while(!target.toString().contains("D")) Thread.sleep(1);
+        Thread.sleep(50);
+        // the consumer has parked by now, publishing must wake it up (close would as well)
+        pipeline.publish(Collections.<CharSequence>singletonList("E"));
+        while(!target.toString().contains("E")) Thread.sleep(1);
+        pipeline.close();
+
+        Assert.assertEquals(2, pipeline.getDroppedCount());
+        Assert.assertEquals(1, pipeline.getFailedCount());
+        Assert.assertEquals(0, pipeline.getDelayedCount());
+        Assert.assertEquals(
+                pbFormatter.format(Collections.<CharSequence>singletonList("A")) + NLN
+                        + pbFormatter.format(Collections.<CharSequence>singletonList("D")) + NLN
+                        + pbFormatter.format(Collections.<CharSequence>singletonList("E")) + NLN,
+                target.toString());
+    }
+
+    @Test
+    public void publishRowsEmitsRowsOnDemand() {
+        final List<String> rows = new ArrayList<>();
+        final boolean[] completed = new boolean[1];
+        final BoxRowPublisher.Subscription[] subscription = new BoxRowPublisher.Subscription[1];
+        BoxRowPublisher.Subscriber subscriber = new BoxRowPublisher.Subscriber() {
+            @Override
+            public void onSubscribe(BoxRowPublisher.Subscription s) { subscription[0] = s; }
+            @Override
+            public void onNext(String row) { rows.add(row); }
+            @Override
+            public void onError(Throwable throwable) { Assert.fail(throwable.toString()); }
+            @Override
+            public void onComplete() { completed[0] = true; }
+        };
+
+        final int[] toStringLinesCalls = new int[1];
+        PrettyBoxable prettyBoxable = new PrettyBoxable() {
+            @Override
+            public List<CharSequence> toStringLines() {
+                toStringLinesCalls[0]++;
+                return Arrays.<CharSequence>asList("first", new LineWithLevel(0),
+                        "a line longer than the box, so it's split into several rows");
+            }
+        };
+        PrettyBoxConfiguration configuration = new PrettyBoxConfiguration.Builder()
+                .setCharsPerLine(20)
+                .setVerticalPadding(1)
+                .build();
+
+        pbFormatter.publishRows(prettyBoxable, configuration).subscribe(subscriber);
+        Assert.assertEquals(0, toStringLinesCalls[0]);
+
+        subscription[0].request(2);
+        Assert.assertEquals(2, rows.size());
+        Assert.assertFalse(completed[0]);
+
+        subscription[0].request(Long.MAX_VALUE);
+        Assert.assertTrue(completed[0]);
+        StringBuilder joined = new StringBuilder();
+        for (String row : rows) {
+            if(joined.length() != 0) joined.append(NLN);
+            joined.append(row);
+        }
+        Assert.assertEquals(pbFormatter.format(prettyBoxable, configuration), joined.toString());
+
+        rows.clear();
+        completed[0] = false;
+        pbFormatter.publishRows(SIMPLE_BOXABLE_OBJECT.toStringLines()).subscribe(subscriber);
+        subscription[0].request(1);
+        subscription[0].cancel();
+        subscription[0].request(1);
+        Assert.assertEquals(1, rows.size());
+        Assert.assertFalse(completed[0]);
+    }
+
+    @Test
+    public void publishRowsSignalsInvalidDemandAfterOnNextReturns() {
+        final List<String> rows = new ArrayList<>();
+        final List<Throwable> errors = new ArrayList<>();
+        final boolean[] inOnNext = new boolean[1];
+        final BoxRowPublisher.Subscription[] subscription = new BoxRowPublisher.Subscription[1];
+        BoxRowPublisher.Subscriber subscriber = new BoxRowPublisher.Subscriber() {
+            @Override
+            public void onSubscribe(BoxRowPublisher.Subscription s) { subscription[0] = s; }
+            @Override
+            public void onNext(String row) {
+                inOnNext[0] = true;
+                rows.add(row);
+                subscription[0].request(0);
+                inOnNext[0] = false;
+            }
+            @Override
+            public void onError(Throwable throwable) {
+                Assert.assertFalse(inOnNext[0]);
+                errors.add(throwable);
+            }
+            @Override
+            public void onComplete() { Assert.fail("Completed"); }
+        };
+
+        pbFormatter.publishRows(SIMPLE_BOXABLE_OBJECT.toStringLines()).subscribe(subscriber);
+        subscription[0].request(5);
+        Assert.assertEquals(1, rows.size());
+        Assert.assertEquals(1, errors.size());
+        Assert.assertTrue(errors.get(0) instanceof IllegalArgumentException);
+
+        subscription[0].request(5);
+        subscription[0].request(-1);
+        Assert.assertEquals(1, rows.size());
+        Assert.assertEquals(1, errors.size());
+    }
+
+    @Test
+    public void wideAndCombiningCharactersKeepBordersAligned() throws Exception {
+        List<CharSequence> lines = Arrays.<CharSequence>asList(
+                "plain",
+                "日本語のテキスト",
+                "cafe\u0301 \uD83D\uDE00 \uD83D\uDC4D\uD83C\uDFFD",
+                "\uD83D\uDE00\uD83D\uDE00\uD83D\uDE00\uD83D\uDE00\uD83D\uDE00\uD83D\uDE00");
+        PrettyBoxConfiguration configuration = new PrettyBoxConfiguration.Builder()
+                .setCharsPerLine(9)
+                .build();
+
+        String box = pbFormatter.format(lines, configuration);
+        String[] rows = box.split(NLN);
+        int width = DisplayWidth.of(rows[0]);
+        for (String row : rows) {
+            Assert.assertEquals(row, width, DisplayWidth.of(row));
+            for (int i = 0; i < row.length(); i++) {
+                char c = row.charAt(i);
+                if(Character.isHighSurrogate(c))
+                    Assert.assertTrue(row, Character.isLowSurrogate(row.charAt(++i)));
+                else Assert.assertFalse(row, Character.isLowSurrogate(c));
+            }
+        }
+
+        StringBuilder stringBuilder = new StringBuilder();
+        pbFormatter.formatTo(stringBuilder, lines, configuration);
+        Assert.assertEquals(box, stringBuilder.toString());
+        byte[] expected = box.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(expected.length);
+        pbFormatter.formatTo(buffer, lines, configuration);
+        Assert.assertArrayEquals(expected, buffer.array());
+        StringWriter streamed = new StringWriter();
+        pbFormatter.streamTo(streamed, lines.iterator(), configuration);
+        Assert.assertEquals(box, streamed.toString());
+
+        pbFormatter.setParallelRenderingThreshold(1);
+        Assert.assertEquals(box, pbFormatter.format(lines, configuration));
+    }
+
+    @Test
+    public void controlCharactersTakeNoColumns() throws IOException {
+        Assert.assertFalse(DisplayWidth.isPlain("ab\u0085cd"));
+        Assert.assertFalse(DisplayWidth.isPlain("ab\u007Fcd"));
+        Assert.assertTrue(DisplayWidth.isPlain("ab cdÿ"));
+        Assert.assertEquals(4, DisplayWidth.of("ab\u0085cd"));
+        Assert.assertEquals(4, DisplayWidth.of("ab\u007Fcd\u009F"));
+
+        List<CharSequence> lines = Arrays.<CharSequence>asList(
+                "ab\u0085cd",
+                "\u00850123456789");
+        PrettyBoxConfiguration configuration = new PrettyBoxConfiguration.Builder()
+                .setCharsPerLine(9)
+                .build();
+
+        String box = pbFormatter.format(lines, configuration);
+        String[] rows = box.split(NLN);
+        Assert.assertEquals(5, rows.length);
+        for (String row : rows) Assert.assertEquals(row, 9, DisplayWidth.of(row));
+        Assert.assertEquals("│ ab\u0085cd  │", rows[1]);
+        Assert.assertEquals("│ \u008501234 │", rows[2]);
+        Assert.assertEquals("│ 56789 │", rows[3]);
+
+        StringWriter streamed = new StringWriter();
+        pbFormatter.streamTo(streamed, lines.iterator(), configuration);
+        Assert.assertEquals(box, streamed.toString());
+    }
+
+    @Test
+    public void ansiEscapesTakeNoColumnsAndStyleCarriesOverSplitRows() {
+        String red = "\u001B[31m";
+        String reset = "\u001B[0m";
+        List<CharSequence> lines = Arrays.<CharSequence>asList(
+                "plain",
+                red + "0123456789" + reset + " tail");
+        PrettyBoxConfiguration configuration = new PrettyBoxConfiguration.Builder()
+                .setCharsPerLine(9)
+                .build();
+
+        String[] rows = pbFormatter.format(lines, configuration).split(NLN);
+        Assert.assertEquals(6, rows.length);
+        for (String row : rows) Assert.assertEquals(row, 9, DisplayWidth.of(row));
+        Assert.assertEquals("│ " + red + "01234" + reset + " │", rows[2]);
+        Assert.assertEquals("│ " + red + "56789" + reset + " │", rows[3]);
+        Assert.assertEquals("│  tail │", rows[4]);
+
+        String wrapped = pbFormatter.format(
+                Collections.<CharSequence>singletonList(red + "red" + reset));
+        Assert.assertEquals("│ " + red + "red" + reset + " │", wrapped.split(NLN)[1]);
+    }
+
+    @Test
+    public void styleIsResetBeforePaddingOfSingleRow() throws IOException {
+        String red = "\u001B[31m";
+        String reset = "\u001B[0m";
+        List<CharSequence> lines = Arrays.<CharSequence>asList(red + "red", "plain");
+        PrettyBoxConfiguration configuration = new PrettyBoxConfiguration.Builder()
+                .setCharsPerLine(9)
+                .setWrapContent(false)
+                .build();
+
+        String box = pbFormatter.format(lines, configuration);
+        String[] rows = box.split(NLN);
+        Assert.assertEquals("│ " + red + "red" + reset + "   │", rows[1]);
+        Assert.assertEquals("│ plain │", rows[2]);
+
+        StringWriter streamed = new StringWriter();
+        pbFormatter.streamTo(streamed, lines.iterator(), configuration);
+        Assert.assertEquals(box, streamed.toString());
+
+        StringWriter written = new StringWriter();
+        BoxWriter boxWriter = pbFormatter.openBox(written, configuration);
+        for (CharSequence line : lines) boxWriter.appendLine(line);
+        boxWriter.close();
+        Assert.assertEquals(box, written.toString());
+
+        pbFormatter.setParallelRenderingThreshold(1);
+        Assert.assertEquals(box, pbFormatter.format(lines, configuration));
+    }
+
+    @Test
+    public void wordWrapModesBreakLinesAtSpaces() throws IOException {
+        List<CharSequence> lines = Arrays.<CharSequence>asList("aaa bb cc ddddd", "abcdefghij");
+
+        Assert.assertArrayEquals(new String[] {"aaa bb", "cc dd", "ddd", "abcdef", "ghij"},
+                wrappedRows(lines, null));
+        Assert.assertArrayEquals(new String[] {"aaa bb", "cc", "ddddd", "abcdef", "ghij"},
+                wrappedRows(lines, WrapMode.WORD));
+        Assert.assertArrayEquals(new String[] {"aaa", "bb cc", "ddddd", "abcdef", "ghij"},
+                wrappedRows(lines, WrapMode.OPTIMAL));
+    }
+
+    @Test
+    public void sliceableContentIsRenderedTheSameAsStrings() throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 200; i++) text.append(i).append(' ');
+        char[] chars = ("##" + text + "##").toCharArray();
+        CharBuffer buffer = CharBuffer.wrap(chars, 1, text.length() + 2).slice();
+        buffer.position(1);
+        buffer.limit(1 + text.length());
+        PrettyBoxConfiguration configuration = new PrettyBoxConfiguration.Builder()
+                .setCharsPerLine(40)
+                .build();
+
+        String expected = pbFormatter.format(
+                Collections.<CharSequence>singletonList(text.toString()), configuration);
+        List<CharSequence> lines = Arrays.<CharSequence>asList(text, buffer);
+        String box = pbFormatter.format(Collections.<CharSequence>singletonList(buffer),
+                configuration);
+        Assert.assertEquals(expected, box);
+        Assert.assertEquals(expected, pbFormatter.format(
+                Collections.<CharSequence>singletonList(text), configuration));
+
+        StringWriter writer = new StringWriter();
+        pbFormatter.formatTo(writer, lines, configuration);
+        StringBuilder stringBuilder = new StringBuilder();
+        pbFormatter.formatTo(stringBuilder, lines, configuration);
+        Assert.assertEquals(writer.toString(), stringBuilder.toString());
+        Assert.assertEquals(pbFormatter.format(Arrays.<CharSequence>asList(text, text),
+                configuration), writer.toString());
+
+        byte[] utf8 = box.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer bytes = ByteBuffer.allocate(utf8.length);
+        pbFormatter.formatTo(bytes, Collections.<CharSequence>singletonList(buffer), configuration);
+        Assert.assertArrayEquals(utf8, bytes.array());
+    }
+
+    @Test
+    public void embeddedLineBreaksStartNewRows() throws IOException {
+        List<CharSequence> lines = Arrays.<CharSequence>asList(
+                "first\nsecond\r\n\nthird\n", new StringBuilder("a very long line\nend"));
+        PrettyBoxConfiguration configuration = new PrettyBoxConfiguration.Builder()
+                .setCharsPerLine(12)
+                .build();
+
+        String box = pbFormatter.format(lines, configuration);
+        String[] rows = box.split(NLN);
+        Assert.assertEquals(9, rows.length);
+        Assert.assertEquals("│ first    │", rows[1]);
+        Assert.assertEquals("│ second   │", rows[2]);
+        Assert.assertEquals("│          │", rows[3]);
+        Assert.assertEquals("│ third    │", rows[4]);
+        Assert.assertEquals("│ a very l │", rows[5]);
+        Assert.assertEquals("│ ong line │", rows[6]);
+        Assert.assertEquals("│ end      │", rows[7]);
+
+        StringWriter streamed = new StringWriter();
+        pbFormatter.streamTo(streamed, lines.iterator(), configuration);
+        Assert.assertEquals(box, streamed.toString());
+        Assert.assertEquals("│ end │", pbFormatter.format(
+                Collections.<CharSequence>singletonList("end\n")).split(NLN)[1]);
+    }
+
+    @Test
+    public void normalizedContentHasTabsExpandedAndControlCharactersVisible() throws IOException {
+        List<CharSequence> lines = Arrays.<CharSequence>asList(
+                "a\tb", "ab\tc\r\nx\u0000y\u007F\u0085", "clean");
+        PrettyBoxConfiguration configuration = new PrettyBoxConfiguration.Builder()
+                .setNormalizeContent(true)
+                .setTabSize(4)
+                .build();
+
+        String box = pbFormatter.format(lines, configuration);
+        String[] rows = box.split(NLN);
+        Assert.assertEquals(6, rows.length);
+        Assert.assertEquals("│ a   b    │", rows[1]);
+        Assert.assertEquals("│ ab  c    │", rows[2]);
+        Assert.assertEquals("│ x\u2400y\u2421\\x85 │", rows[3]);
+        Assert.assertEquals("│ clean    │", rows[4]);
+
+        StringWriter streamed = new StringWriter();
+        pbFormatter.streamTo(streamed, lines.iterator(), configuration);
+        Assert.assertEquals(box, streamed.toString());
+    }
+
+    @Test
+    public void veryLargeCharsPerLineOnlyBuildsTemplatesOfUsedWidths() {
+        PrettyBoxConfiguration configuration = new PrettyBoxConfiguration.Builder()
+                .setCharsPerLine(Integer.MAX_VALUE)
+                .build();
+
+        String[] rows = pbFormatter.format(
+                Collections.<CharSequence>singletonList("hello"), configuration).split(NLN);
+        Assert.assertEquals(3, rows.length);
+        Assert.assertEquals("│ hello │", rows[1]);
+
+        for (int width = 1; width <= 3 * BoxTemplates.MAX_CACHED_WIDTHS; width++) {
+            char[] line = new char[width];
+            Arrays.fill(line, 'x');
+            String box = pbFormatter.format(
+                    Collections.<CharSequence>singletonList(new String(line)), configuration);
+            Assert.assertEquals(width + 4, box.split(NLN)[1].length());
+        }
+    }
+
+    @Test
+    public void spillFileIsPrivateAndDeletedWhenReadingFails() throws IOException {
+        SpillingLineBuffer buffer = new SpillingLineBuffer(0);
+        buffer.add("spilled");
+        Path file = buffer.getSpillFile();
+        Assert.assertNotNull(file);
+        if(FileSystems.getDefault().supportedFileAttributeViews().contains("posix"))
+            Assert.assertEquals(PosixFilePermissions.fromString("rw-------"),
+                    Files.getPosixFilePermissions(file));
+
+        Iterator<CharSequence> lines = buffer.iterator();
+        // a line claiming more chars than there are in the file
+        Files.write(file, new byte[] { 0, 0, 0, 100 });
+        try {
+            lines.next();
+            Assert.fail("Expected UncheckedIOException");
+        } catch (UncheckedIOException e) {
+            // Expected
+        }
+        Assert.assertNull(buffer.getSpillFile());
+        Assert.assertFalse(Files.exists(file));
+        buffer.close();
+    }
+
+    @Test
+    public void clientUncheckedIOExceptionIsNotUnwrappedWhenStreamingSpilledContent()
+            throws IOException {
+        final UncheckedIOException failure = new UncheckedIOException(new IOException("client"));
+        Appendable target = new Appendable() {
+            @Override
+            public Appendable append(CharSequence csq) { throw failure; }
+            @Override
+            public Appendable append(CharSequence csq, int start, int end) { throw failure; }
+            @Override
+            public Appendable append(char c) { throw failure; }
+        };
+        List<CharSequence> lines = new ArrayList<>();
+        for (int i = 0; i < 10; i++) lines.add("Line number " + i);
+
+        pbFormatter.setStreamingBufferLimit(10);
+        try {
+            pbFormatter.streamTo(target, lines.iterator());
+            Assert.fail("Expected UncheckedIOException");
+        } catch (UncheckedIOException e) {
+            Assert.assertSame(failure, e);
+        }
+    }
+
+    /** Content of rows of a box with content width 6, checking that streaming gives the same. */
+    private String[] wrappedRows(List<CharSequence> lines, WrapMode wrapMode) throws IOException {
+        PrettyBoxConfiguration configuration = new PrettyBoxConfiguration.Builder()
+                .setCharsPerLine(10)
+                .setWrapMode(wrapMode)
+                .build();
+        String box = pbFormatter.format(lines, configuration);
+        StringWriter streamed = new StringWriter();
+        pbFormatter.streamTo(streamed, lines.iterator(), configuration);
+        Assert.assertEquals(box, streamed.toString());
+
+        String[] rows = box.split(NLN);
+        String[] content = new String[rows.length - 2];
+        for (int i = 0; i < content.length; i++)
+            content[i] = rows[i + 1].substring(2, 8).trim();
+        return content;
+    }
+
 }
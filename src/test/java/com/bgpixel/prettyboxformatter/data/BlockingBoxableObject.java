@@ -0,0 +1,37 @@
+package com.bgpixel.prettyboxformatter.data;
+
+import com.bgpixel.prettyboxformatter.PrettyBoxable;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/** Content whose toStringLines waits until released, keeping whoever renders it busy. */
+public class BlockingBoxableObject implements PrettyBoxable {
+
+    @NotNull private final String line;
+    @NotNull private final CountDownLatch rendering = new CountDownLatch(1);
+    @NotNull private final CountDownLatch released = new CountDownLatch(1);
+
+    public BlockingBoxableObject(@NotNull String line) {
+        this.line = line;
+    }
+
+    /** Waits until some thread has started rendering this object. */
+    public void awaitRendering() throws InterruptedException { rendering.await(); }
+
+    public void release() { released.countDown(); }
+
+    @NotNull @Override
+    public List<CharSequence> toStringLines() {
+        rendering.countDown();
+        try {
+            released.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return Collections.<CharSequence>singletonList(line);
+    }
+
+}